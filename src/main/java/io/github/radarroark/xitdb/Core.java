@@ -15,6 +15,34 @@ public interface Core {
 
     public long position() throws IOException;
 
+    // reads into the buffer starting at the given position. unlike
+    // the reader, this does not change the current position, so it
+    // can be called from multiple threads at once. this default seeks
+    // and restores the position while holding the core's lock, so cores
+    // that can read at a position without seeking should override it.
+    public default void readAt(long pos, byte[] buffer) throws IOException {
+        synchronized (this) {
+            var oldPos = position();
+            try {
+                seek(pos);
+                reader().readFully(buffer);
+            } finally {
+                seek(oldPos);
+            }
+        }
+    }
+
+    // writes the buffers one after another starting at the current position,
+    // so a header and its block can be written with a single write. this
+    // default writes them one at a time, so cores that can gather them
+    // into one write should override it.
+    public default void writeAll(byte[]... buffers) throws IOException {
+        var writer = writer();
+        for (var buffer : buffers) {
+            writer.write(buffer);
+        }
+    }
+
     public void setLength(long len) throws IOException;
 
     public void flush() throws IOException;
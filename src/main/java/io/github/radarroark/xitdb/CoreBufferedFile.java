@@ -36,6 +36,16 @@ public class CoreBufferedFile implements Core {
         return this.file.position();
     }
 
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.file.readAt(pos, buffer);
+    }
+
+    @Override
+    public void writeAll(byte[]... buffers) throws IOException {
+        this.file.writeAll(buffers);
+    }
+
     @Override
     public void setLength(long len) throws IOException {
         this.file.setLength(len);
@@ -0,0 +1,307 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+
+// wraps another core with a size-bounded cache of fixed-size blocks,
+// keyed by their (aligned) offset in the file. the database is append-only,
+// so most cached blocks never change. the few writes that go to existing
+// data (such as updating a slot) invalidate the blocks they overlap.
+public class CoreCached implements Core {
+    public Core core;
+    int blockSize;
+    CachedWriter cachedWriter;
+
+    // the cache uses CLOCK eviction. each frame holds one block,
+    // and its referenced bit is set whenever it is read.
+    HashMap<Long, Integer> frameIndex;
+    long[] frameBlocks;
+    byte[][] frameData;
+    boolean[] frameReferenced;
+    int frameCount;
+    int clockHand;
+
+    long hitCount;
+    long missCount;
+
+    // incremented on every write. a block loaded from the inner core is only
+    // inserted if no write happened while it was being read, so a reader
+    // thread can't put a stale block into the cache.
+    long writeCount;
+
+    public CoreCached(Core core) {
+        this(core, 4096, 16 * 1024 * 1024);
+    }
+
+    public CoreCached(Core core, int blockSize, long maxBytes) {
+        if (blockSize <= 0) throw new IllegalArgumentException("Block size must be positive");
+        var maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockSize);
+        if (maxBlocks <= 0) throw new IllegalArgumentException("Cache must be able to hold at least one block");
+        this.core = core;
+        this.blockSize = blockSize;
+        this.cachedWriter = new CachedWriter();
+        this.frameIndex = new HashMap<>();
+        this.frameBlocks = new long[maxBlocks];
+        this.frameData = new byte[maxBlocks][];
+        this.frameReferenced = new boolean[maxBlocks];
+        this.frameCount = 0;
+        this.clockHand = 0;
+    }
+
+    public synchronized long hitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long missCount() {
+        return this.missCount;
+    }
+
+    public synchronized void clear() {
+        this.writeCount += 1;
+        this.frameIndex.clear();
+        for (int i = 0; i < this.frameCount; i++) {
+            this.frameData[i] = null;
+            this.frameReferenced[i] = false;
+        }
+        this.frameCount = 0;
+        this.clockHand = 0;
+    }
+
+    @Override
+    public DataInput reader() {
+        return this.core.reader();
+    }
+
+    @Override
+    public DataOutput writer() {
+        return this.cachedWriter;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return this.core.length();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        this.core.seek(pos);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.core.position();
+    }
+
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        var off = 0;
+        while (off < buffer.length) {
+            var blockNum = (pos + off) / this.blockSize;
+            var blockPos = (int) ((pos + off) % this.blockSize);
+            var size = Math.min(buffer.length - off, this.blockSize - blockPos);
+
+            if (!this.readCached(blockNum, blockPos, buffer, off, size)) {
+                var writeCountBefore = this.currentWriteCount();
+                byte[] block = new byte[this.blockSize];
+                try {
+                    this.core.readAt(blockNum * this.blockSize, block);
+                } catch (EOFException e) {
+                    // the last block in the file is incomplete, so it can't
+                    // be cached yet. read the rest directly from the core.
+                    var rest = new byte[buffer.length - off];
+                    this.core.readAt(pos + off, rest);
+                    System.arraycopy(rest, 0, buffer, off, rest.length);
+                    return;
+                }
+                System.arraycopy(block, blockPos, buffer, off, size);
+                this.insert(blockNum, block, writeCountBefore);
+            }
+
+            off += size;
+        }
+    }
+
+    @Override
+    public void writeAll(byte[]... buffers) throws IOException {
+        var pos = this.core.position();
+        this.core.writeAll(buffers);
+        long len = 0;
+        for (var buffer : buffers) {
+            len += buffer.length;
+        }
+        this.invalidate(pos, len);
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        this.core.setLength(len);
+        this.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.core.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        this.core.sync();
+    }
+
+    private synchronized boolean readCached(long blockNum, int blockPos, byte[] buffer, int off, int size) {
+        var frame = this.frameIndex.get(blockNum);
+        if (frame == null) {
+            this.missCount += 1;
+            return false;
+        }
+        this.hitCount += 1;
+        this.frameReferenced[frame] = true;
+        System.arraycopy(this.frameData[frame], blockPos, buffer, off, size);
+        return true;
+    }
+
+    private synchronized long currentWriteCount() {
+        return this.writeCount;
+    }
+
+    private synchronized void insert(long blockNum, byte[] block, long writeCountBefore) {
+        if (this.writeCount != writeCountBefore) return;
+        // another thread may have loaded the same block in the meantime
+        if (this.frameIndex.containsKey(blockNum)) return;
+
+        int frame;
+        if (this.frameCount < this.frameData.length) {
+            frame = this.frameCount;
+            this.frameCount += 1;
+        } else {
+            // advance the clock hand until we find a frame that
+            // hasn't been referenced since the last time we passed it
+            while (this.frameReferenced[this.clockHand]) {
+                this.frameReferenced[this.clockHand] = false;
+                this.clockHand = (this.clockHand + 1) % this.frameCount;
+            }
+            frame = this.clockHand;
+            this.clockHand = (this.clockHand + 1) % this.frameCount;
+            this.frameIndex.remove(this.frameBlocks[frame]);
+        }
+
+        this.frameBlocks[frame] = blockNum;
+        this.frameData[frame] = block;
+        this.frameReferenced[frame] = false;
+        this.frameIndex.put(blockNum, frame);
+    }
+
+    private synchronized void invalidate(long pos, long len) {
+        this.writeCount += 1;
+        if (this.frameIndex.isEmpty() || len <= 0) return;
+        var firstBlock = pos / this.blockSize;
+        var lastBlock = (pos + len - 1) / this.blockSize;
+        for (var blockNum = firstBlock; blockNum <= lastBlock; blockNum++) {
+            var frame = this.frameIndex.remove(blockNum);
+            if (frame != null) {
+                // move the last frame into the hole so the frames stay dense
+                var last = this.frameCount - 1;
+                if (frame != last) {
+                    this.frameBlocks[frame] = this.frameBlocks[last];
+                    this.frameData[frame] = this.frameData[last];
+                    this.frameReferenced[frame] = this.frameReferenced[last];
+                    this.frameIndex.put(this.frameBlocks[frame], frame);
+                }
+                this.frameData[last] = null;
+                this.frameReferenced[last] = false;
+                this.frameCount = last;
+                if (this.clockHand >= this.frameCount) this.clockHand = 0;
+            }
+        }
+    }
+
+    // forwards writes to the inner core, invalidating any cached blocks they overlap
+    class CachedWriter implements DataOutput {
+        @Override
+        public void write(byte[] buffer) throws IOException {
+            var pos = core.position();
+            core.writer().write(buffer);
+            invalidate(pos, buffer.length);
+        }
+
+        @Override
+        public void write(int i) throws IOException {
+            var pos = core.position();
+            core.writer().write(i);
+            invalidate(pos, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            var pos = core.position();
+            core.writer().write(b, off, len);
+            invalidate(pos, len);
+        }
+
+        @Override
+        public void writeBoolean(boolean b) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeBoolean'");
+        }
+
+        @Override
+        public void writeByte(int i) throws IOException {
+            var pos = core.position();
+            core.writer().writeByte(i);
+            invalidate(pos, 1);
+        }
+
+        @Override
+        public void writeShort(int i) throws IOException {
+            var pos = core.position();
+            core.writer().writeShort(i);
+            invalidate(pos, 2);
+        }
+
+        @Override
+        public void writeChar(int i) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeChar'");
+        }
+
+        @Override
+        public void writeInt(int i) throws IOException {
+            var pos = core.position();
+            core.writer().writeInt(i);
+            invalidate(pos, 4);
+        }
+
+        @Override
+        public void writeLong(long l) throws IOException {
+            var pos = core.position();
+            core.writer().writeLong(l);
+            invalidate(pos, 8);
+        }
+
+        @Override
+        public void writeFloat(float v) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeFloat'");
+        }
+
+        @Override
+        public void writeDouble(double v) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeDouble'");
+        }
+
+        @Override
+        public void writeBytes(String s) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+        }
+
+        @Override
+        public void writeChars(String s) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeChars'");
+        }
+
+        @Override
+        public void writeUTF(String s) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeUTF'");
+        }
+    }
+}
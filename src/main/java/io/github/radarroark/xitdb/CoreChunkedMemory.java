@@ -0,0 +1,61 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class CoreChunkedMemory implements Core {
+    public RandomAccessChunkedMemory memory;
+
+    public CoreChunkedMemory(RandomAccessChunkedMemory memory) {
+        this.memory = memory;
+    }
+
+    @Override
+    public DataInput reader() {
+        return this.memory;
+    }
+
+    @Override
+    public DataOutput writer() {
+        return this.memory;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return this.memory.length();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        this.memory.seek(pos);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.memory.position();
+    }
+
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.memory.readAt(pos, buffer);
+    }
+
+    @Override
+    public void writeAll(byte[]... buffers) throws IOException {
+        this.memory.writeAll(buffers);
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        this.memory.setLength(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void sync() throws IOException {
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class CoreDirectFile implements Core {
+    public RandomAccessDirectFile file;
+
+    public CoreDirectFile(RandomAccessDirectFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public DataInput reader() {
+        return this.file;
+    }
+
+    @Override
+    public DataOutput writer() {
+        return this.file;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return this.file.length();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        this.file.seek(pos);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.file.position();
+    }
+
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.file.readAt(pos, buffer);
+    }
+
+    @Override
+    public void writeAll(byte[]... buffers) throws IOException {
+        this.file.writeAll(buffers);
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        this.file.setLength(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.file.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        this.file.sync();
+    }
+}
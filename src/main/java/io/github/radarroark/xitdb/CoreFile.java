@@ -2,8 +2,10 @@ package io.github.radarroark.xitdb;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class CoreFile implements Core {
     public RandomAccessFile file;
@@ -37,6 +39,31 @@ public class CoreFile implements Core {
         return this.file.getFilePointer();
     }
 
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        var byteBuffer = ByteBuffer.wrap(buffer);
+        var channel = this.file.getChannel();
+        while (byteBuffer.hasRemaining()) {
+            var size = channel.read(byteBuffer, pos + byteBuffer.position());
+            if (size < 0) throw new EOFException();
+        }
+    }
+
+    @Override
+    public void writeAll(byte[]... buffers) throws IOException {
+        var byteBuffers = new ByteBuffer[buffers.length];
+        long remaining = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            byteBuffers[i] = ByteBuffer.wrap(buffers[i]);
+            remaining += buffers[i].length;
+        }
+        // the channel shares its position with the file
+        var channel = this.file.getChannel();
+        while (remaining > 0) {
+            remaining -= channel.write(byteBuffers);
+        }
+    }
+
     @Override
     public void setLength(long len) throws IOException {
         this.file.setLength(len);
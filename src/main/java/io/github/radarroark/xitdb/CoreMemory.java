@@ -36,6 +36,16 @@ public class CoreMemory implements Core {
         return this.memory.position.get();
     }
 
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.memory.readAt(pos, buffer);
+    }
+
+    @Override
+    public void writeAll(byte[]... buffers) throws IOException {
+        this.memory.writeAll(buffers);
+    }
+
     @Override
     public void setLength(long len) throws IOException {
         this.memory.setLength((int)len);
@@ -0,0 +1,350 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// wraps another core, keeping everything written past the end of the
+// inner core in memory until it is flushed. a transaction only appends,
+// and the blocks it copies are then changed in place (such as when a
+// slot is pointed at a block copied below it), so with this, those
+// changes are made in memory and the whole transaction is written with
+// a single write when it is flushed right before it completes. writes
+// to data that was already flushed (such as the top-level header) go
+// straight to the inner core.
+//
+// if the buffer grows past its maximum size, it is written to the inner
+// core early (which is safe, because nothing points to it yet) and a new
+// one is started after it.
+public class CoreTransactionBuffer implements Core {
+    public Core core;
+    int maxBytes;
+    BufferWriter bufferWriter;
+    BufferReader bufferReader;
+
+    // the buffer holds the bytes from bufferStart to bufferStart + bufferSize
+    volatile long bufferStart;
+    byte[] buffer;
+    int bufferSize;
+    long position;
+
+    public CoreTransactionBuffer(Core core) throws IOException {
+        this(core, 16 * 1024 * 1024);
+    }
+
+    public CoreTransactionBuffer(Core core, int maxBytes) throws IOException {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        this.core = core;
+        this.maxBytes = maxBytes;
+        this.bufferWriter = new BufferWriter();
+        this.bufferReader = new BufferReader();
+        this.bufferStart = core.length();
+        this.buffer = new byte[Math.min(maxBytes, 4096)];
+        this.bufferSize = 0;
+        this.position = 0;
+    }
+
+    @Override
+    public DataInput reader() {
+        return this.bufferReader;
+    }
+
+    @Override
+    public DataOutput writer() {
+        return this.bufferWriter;
+    }
+
+    @Override
+    public synchronized long length() throws IOException {
+        return this.bufferStart + this.bufferSize;
+    }
+
+    @Override
+    public synchronized void seek(long pos) throws IOException {
+        this.position = pos;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        return this.position;
+    }
+
+    @Override
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        // data that was already flushed can be read without the lock, so
+        // reader threads don't wait for a transaction that is being written
+        if (pos + buffer.length <= this.bufferStart) {
+            this.core.readAt(pos, buffer);
+            return;
+        }
+        readAtLocked(pos, buffer);
+    }
+
+    private synchronized void readAtLocked(long pos, byte[] buffer) throws IOException {
+        var innerSize = (int) Math.max(0, Math.min(buffer.length, this.bufferStart - pos));
+        if (innerSize > 0) {
+            var bytes = new byte[innerSize];
+            this.core.readAt(pos, bytes);
+            System.arraycopy(bytes, 0, buffer, 0, innerSize);
+        }
+        var size = buffer.length - innerSize;
+        if (size == 0) return;
+        var offset = pos + innerSize - this.bufferStart;
+        if (offset + size > this.bufferSize) throw new EOFException();
+        System.arraycopy(this.buffer, (int) offset, buffer, innerSize, size);
+    }
+
+    @Override
+    public synchronized void writeAll(byte[]... buffers) throws IOException {
+        for (var buffer : buffers) {
+            write(buffer, 0, buffer.length);
+        }
+    }
+
+    @Override
+    public synchronized void setLength(long len) throws IOException {
+        if (len >= this.bufferStart) {
+            var size = len - this.bufferStart;
+            if (size > this.bufferSize) {
+                ensureCapacity(size);
+                Arrays.fill(this.buffer, this.bufferSize, (int) size, (byte) 0);
+            }
+            this.bufferSize = (int) size;
+        } else {
+            this.bufferSize = 0;
+            this.core.setLength(len);
+            this.bufferStart = len;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+        this.core.flush();
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        writeBuffer();
+        this.core.sync();
+    }
+
+    // writes the buffer to the inner core with a single write
+    private void writeBuffer() throws IOException {
+        if (this.bufferSize == 0) return;
+        this.core.seek(this.bufferStart);
+        this.core.writeAll(Arrays.copyOf(this.buffer, this.bufferSize));
+        this.bufferStart += this.bufferSize;
+        this.bufferSize = 0;
+    }
+
+    private void ensureCapacity(long size) {
+        if (size > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, (int) Math.max(size, Math.min((long) this.buffer.length * 2, Integer.MAX_VALUE - 8)));
+        }
+    }
+
+    private synchronized void write(byte[] bytes, int off, int len) throws IOException {
+        // the part before the buffer goes straight to the inner core
+        if (this.position < this.bufferStart) {
+            var innerSize = (int) Math.min(len, this.bufferStart - this.position);
+            this.core.seek(this.position);
+            this.core.writeAll(Arrays.copyOfRange(bytes, off, off + innerSize));
+            this.position += innerSize;
+            off += innerSize;
+            len -= innerSize;
+            if (len == 0) return;
+        }
+
+        var offset = this.position - this.bufferStart;
+        if (offset + len > this.maxBytes && offset >= this.bufferSize) {
+            // the buffer is full, so write it and start a new one
+            writeBuffer();
+            offset = this.position - this.bufferStart;
+        }
+        if (offset + len > this.maxBytes) {
+            // too big to buffer, so write it directly
+            writeBuffer();
+            this.core.seek(this.position);
+            this.core.writeAll(Arrays.copyOfRange(bytes, off, off + len));
+            this.position += len;
+            this.bufferStart = Math.max(this.bufferStart, this.position);
+            return;
+        }
+
+        ensureCapacity(offset + len);
+        if (offset > this.bufferSize) {
+            Arrays.fill(this.buffer, this.bufferSize, (int) offset, (byte) 0);
+        }
+        System.arraycopy(bytes, off, this.buffer, (int) offset, len);
+        this.bufferSize = (int) Math.max(this.bufferSize, offset + len);
+        this.position += len;
+    }
+
+    private synchronized void read(byte[] bytes, int off, int len) throws IOException {
+        var buffer = new byte[len];
+        readAtLocked(this.position, buffer);
+        System.arraycopy(buffer, 0, bytes, off, len);
+        this.position += len;
+    }
+
+    class BufferWriter implements DataOutput {
+        @Override
+        public void write(byte[] buffer) throws IOException {
+            CoreTransactionBuffer.this.write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(int i) throws IOException {
+            CoreTransactionBuffer.this.write(new byte[]{(byte) i}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            CoreTransactionBuffer.this.write(b, off, len);
+        }
+
+        @Override
+        public void writeBoolean(boolean b) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeBoolean'");
+        }
+
+        @Override
+        public void writeByte(int i) throws IOException {
+            write(i);
+        }
+
+        @Override
+        public void writeShort(int i) throws IOException {
+            write(ByteBuffer.allocate(2).putShort((short) i).array());
+        }
+
+        @Override
+        public void writeChar(int i) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeChar'");
+        }
+
+        @Override
+        public void writeInt(int i) throws IOException {
+            write(ByteBuffer.allocate(4).putInt(i).array());
+        }
+
+        @Override
+        public void writeLong(long l) throws IOException {
+            write(ByteBuffer.allocate(8).putLong(l).array());
+        }
+
+        @Override
+        public void writeFloat(float v) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeFloat'");
+        }
+
+        @Override
+        public void writeDouble(double v) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeDouble'");
+        }
+
+        @Override
+        public void writeBytes(String s) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+        }
+
+        @Override
+        public void writeChars(String s) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeChars'");
+        }
+
+        @Override
+        public void writeUTF(String s) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'writeUTF'");
+        }
+    }
+
+    class BufferReader implements DataInput {
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            read(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            read(b, off, len);
+        }
+
+        @Override
+        public int skipBytes(int n) throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'skipBytes'");
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'readBoolean'");
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            var bytes = new byte[1];
+            read(bytes, 0, 1);
+            return bytes[0];
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xFF;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            var bytes = new byte[2];
+            read(bytes, 0, 2);
+            return ByteBuffer.wrap(bytes).getShort();
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xFFFF;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'readChar'");
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            var bytes = new byte[4];
+            read(bytes, 0, 4);
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            var bytes = new byte[8];
+            read(bytes, 0, 8);
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'readFloat'");
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'readDouble'");
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'readLine'");
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            throw new UnsupportedOperationException("Unimplemented method 'readUTF'");
+        }
+    }
+}
@@ -2,17 +2,47 @@ package io.github.radarroark.xitdb;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
-
-public class Database {
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Database implements AutoCloseable {
     public Core core;
     public MessageDigest md;
+    ThreadLocal<KeyHasher> keyHashers;
     public Header header;
     public Long txStart;
+    Map<Long, Slot[]> slotBlockCache;
+    Map<Long, Long> pendingMapCounts; // counts of counted maps changed in the current transaction
+    int readAroundSize;
+    ThreadLocal<ReadWindow> readWindows;
+    // the shape of hash map index blocks, which comes from the header
+    int mapBitCount;
+    int mapSlotCount;
+    int mapIndexBlockSize;
+    int compactBitmapSize;
+    ThreadLocal<Boolean> isSyncDeferred; // set on the thread writing a GroupCommit group, which syncs once for all of it
+    Durability durability;
+    final Object writeLock = new Object(); // held by writes, so a periodic sync runs between them
+    ScheduledExecutorService periodicSyncer;
+    boolean hasUnsyncedWrites;
+    IOException periodicSyncException;
 
     public static final short VERSION = 0;
     public static final byte[] MAGIC_NUMBER = new byte[]{'x', 'i', 't'};
@@ -20,25 +50,57 @@ public class Database {
     public static final int BIT_COUNT = 4;
     public static final int SLOT_COUNT = 1 << BIT_COUNT;
     public static final long MASK = SLOT_COUNT - 1;
-    public static final BigInteger BIG_MASK = BigInteger.valueOf(MASK);
     public static final int INDEX_BLOCK_SIZE = Slot.length * SLOT_COUNT;
     public static final int LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE = LinkedArrayListSlot.length * SLOT_COUNT;
     public static final int MAX_BRANCH_LENGTH = 16;
+    public static final int MIN_MAP_BIT_COUNT = 2;
+    public static final int MAX_MAP_BIT_COUNT = 8;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
 
     public static enum WriteMode {
         READ_ONLY,
         READ_WRITE
     }
 
+    // when writes are synced to disk. writes that aren't synced are still
+    // flushed to the os, so they survive the process crashing but not
+    // the whole machine going down.
+    public static enum Durability {
+        SYNC_EACH_WRITE, // every write, including transactions, is synced when it completes
+        SYNC_ON_COMMIT, // only transactions on a top-level array list are synced
+        NO_SYNC, // nothing is synced unless core.sync is called
+        PERIODIC // a background thread syncs any new writes at a fixed interval
+    }
+
     // init
 
     public Database(Core core, Hasher hasher) throws IOException {
+        this(core, hasher, BIT_COUNT);
+    }
+
+    // the map bit count is the number of hash bits used at each level of
+    // a hash map or set, so their index blocks have 2^mapBitCount slots.
+    // more bits make the maps shallower but their blocks larger. it only
+    // applies when the database is created; an existing database always
+    // uses the bit count in its header.
+    public Database(Core core, Hasher hasher, int mapBitCount) throws IOException {
+        if (mapBitCount < MIN_MAP_BIT_COUNT || mapBitCount > MAX_MAP_BIT_COUNT) {
+            throw new IllegalArgumentException("mapBitCount must be between " + MIN_MAP_BIT_COUNT + " and " + MAX_MAP_BIT_COUNT);
+        }
         this.core = core;
         this.md = hasher.md();
+        this.keyHashers = ThreadLocal.withInitial(() -> new KeyHasher(this.md));
+        this.pendingMapCounts = new ConcurrentHashMap<>();
+        this.readWindows = new ThreadLocal<>();
+        this.isSyncDeferred = ThreadLocal.withInitial(() -> false);
+        this.durability = Durability.SYNC_EACH_WRITE;
 
         core.seek(0);
         if (core.length() == 0) {
-            this.header = new Header(hasher.id(), (short)hasher.md().getDigestLength(), VERSION, Tag.NONE, MAGIC_NUMBER);
+            // the default bit count is stored as zero, so the header is
+            // the same as in databases made before it was configurable
+            var headerBitCount = mapBitCount == BIT_COUNT ? 0 : mapBitCount;
+            this.header = new Header(hasher.id(), (short)hasher.md().getDigestLength(), VERSION, Tag.NONE, MAGIC_NUMBER, (byte) headerBitCount);
             this.header.write(core);
             this.core.flush();
         } else {
@@ -50,6 +112,10 @@ public class Database {
             truncate();
         }
 
+        this.mapBitCount = this.header.mapBitCountOrDefault();
+        this.mapSlotCount = 1 << this.mapBitCount;
+        this.mapIndexBlockSize = Slot.length * this.mapSlotCount;
+        this.compactBitmapSize = (this.mapSlotCount + 7) / 8;
         this.txStart = null;
     }
 
@@ -57,20 +123,194 @@ public class Database {
         // if the header tag is none, try re-reading it.
         // this may be necessary if the database was initialized on a different thread.
         if (this.header.tag() == Tag.NONE) {
-            core.seek(0);
-            this.header = Header.read(core);
+            var headerBytes = new byte[Header.length];
+            core.readAt(0, headerBytes);
+            this.header = Header.fromBytes(headerBytes);
         }
         return new WriteCursor(new SlotPointer(null, new Slot(DATABASE_START, this.header.tag)), this);
     }
 
+    // hashes keys for the hashing data structures. it is safe to call from
+    // any thread, because each thread hashes with its own copy of the digest.
+    public byte[] hash(byte[] bytes) {
+        var out = new byte[this.header.hashSize()];
+        this.hash(bytes, out, 0);
+        return out;
+    }
+
+    public void hash(byte[] bytes, byte[] out, int offset) {
+        this.keyHashers.get().hash(bytes, bytes.length, out, offset);
+    }
+
+    public byte[] hash(String key) {
+        var out = new byte[this.header.hashSize()];
+        this.hash(key, out, 0);
+        return out;
+    }
+
+    // the key is encoded as UTF-8 into a reusable buffer
+    public void hash(String key, byte[] out, int offset) {
+        var keyHasher = this.keyHashers.get();
+        var encoded = keyHasher.encode(key);
+        keyHasher.hash(encoded.array(), encoded.position(), out, offset);
+    }
+
+    // caches up to the given number of decoded index blocks, so iterating
+    // and looking up keys doesn't need to re-read and re-decode them.
+    // only blocks that can no longer change are cached, which requires
+    // the top-level data structure to be an array list.
+    public void enableSlotBlockCache(int maxBlocks) {
+        this.slotBlockCache = Collections.synchronizedMap(new LinkedHashMap<Long, Slot[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Slot[]> eldest) {
+                return size() > maxBlocks;
+            }
+        });
+    }
+
+    // when looking up a key in a map, also reads up to the given number of
+    // bytes on each side of its key-value pair. keys and values that are too
+    // big to fit in a slot are usually written right before or after the
+    // pair, so reading them from the returned cursor often needs no more i/o.
+    public void enableReadAround(int size) {
+        if (size < 0) throw new IllegalArgumentException("Size must not be negative");
+        this.readAroundSize = size;
+    }
+
+    public void setDurability(Durability durability) throws IOException {
+        setDurability(durability, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    // the interval is only used by the PERIODIC mode. leaving that mode
+    // syncs any writes it hadn't synced yet, and throws if one of its
+    // background syncs failed.
+    public void setDurability(Durability durability, long syncIntervalMillis) throws IOException {
+        if (syncIntervalMillis <= 0) throw new IllegalArgumentException("syncIntervalMillis must be positive");
+        try {
+            stopPeriodicSync();
+        } finally {
+            synchronized (this.writeLock) {
+                this.durability = durability;
+                if (this.periodicSyncer != null) {
+                    // another thread changed the mode at the same time
+                    this.periodicSyncer.shutdown();
+                    this.periodicSyncer = null;
+                }
+                if (durability == Durability.PERIODIC) {
+                    this.periodicSyncer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                        var thread = new Thread(runnable, "xitdb-periodic-sync");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    this.periodicSyncer.scheduleWithFixedDelay(this::periodicSync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    public Durability durability() {
+        return this.durability;
+    }
+
+    // syncs every write so far. if a background sync of the PERIODIC
+    // mode failed since the last time this was called, it is thrown
+    // here, because the writes it was syncing may have been lost.
+    public void sync() throws IOException {
+        synchronized (this.writeLock) {
+            this.core.sync();
+            this.hasUnsyncedWrites = false;
+            throwPeriodicSyncException();
+        }
+    }
+
+    // stops the background thread of the PERIODIC mode and syncs the
+    // writes it hadn't synced yet. this doesn't close the core.
+    @Override
+    public void close() throws IOException {
+        stopPeriodicSync();
+    }
+
     public void freeze() throws IOException {
         if (this.txStart != null) {
+            // the counts must be written before the maps become immutable
+            writeMapCounts();
             this.txStart = this.core.length();
         } else {
             throw new ExpectedTxStartException();
         }
     }
 
+    // called when a write completes outside of a transaction, or when a
+    // transaction completes. a commit is a write to the top-level array list.
+    void completeWrite(boolean isCommit) throws IOException {
+        switch (this.durability) {
+            case SYNC_EACH_WRITE -> this.core.sync();
+            case SYNC_ON_COMMIT -> {
+                if (isCommit) {
+                    this.core.sync();
+                } else {
+                    this.core.flush();
+                }
+            }
+            case NO_SYNC -> this.core.flush();
+            case PERIODIC -> {
+                this.core.flush();
+                this.hasUnsyncedWrites = true;
+            }
+        }
+    }
+
+    private void periodicSync() {
+        synchronized (this.writeLock) {
+            if (!this.hasUnsyncedWrites) return;
+            try {
+                this.core.sync();
+                this.hasUnsyncedWrites = false;
+            } catch (IOException e) {
+                // the next explicit sync, change of mode, or close will throw it
+                this.periodicSyncException = e;
+            }
+        }
+    }
+
+    private void stopPeriodicSync() throws IOException {
+        ScheduledExecutorService periodicSyncer;
+        synchronized (this.writeLock) {
+            periodicSyncer = this.periodicSyncer;
+            this.periodicSyncer = null;
+        }
+        if (periodicSyncer == null) return;
+
+        // wait outside of the lock, because a sync that is running needs it.
+        // the thread isn't interrupted, since that can close a file channel.
+        periodicSyncer.shutdown();
+        var isInterrupted = false;
+        while (true) {
+            try {
+                if (periodicSyncer.awaitTermination(1, TimeUnit.MINUTES)) break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+
+        synchronized (this.writeLock) {
+            if (this.hasUnsyncedWrites) {
+                this.core.sync();
+                this.hasUnsyncedWrites = false;
+            }
+            throwPeriodicSyncException();
+        }
+    }
+
+    private void throwPeriodicSyncException() throws IOException {
+        if (this.periodicSyncException != null) {
+            var e = this.periodicSyncException;
+            this.periodicSyncException = null;
+            throw e;
+        }
+    }
+
     // private
 
     private void truncate() throws IOException {
@@ -97,7 +337,7 @@ public class Database {
         } catch (IOException e) {}
     }
 
-    private byte[] checkHash(byte[] hash) {
+    byte[] checkHash(byte[] hash) {
         if (hash.length != this.header.hashSize()) {
             throw new InvalidHashSizeException();
         }
@@ -134,20 +374,358 @@ public class Database {
 
         var isTopLevel = slotPtr.slot().value() == DATABASE_START;
 
-        var isTxStart = isTopLevel && this.header.tag == Tag.ARRAY_LIST && this.txStart == null;
+        // read-only cursors don't need a tx start, and setting it here
+        // would prevent them from being used on multiple threads at once
+        var isTxStart = isTopLevel && writeMode == WriteMode.READ_WRITE && this.header.tag == Tag.ARRAY_LIST && this.txStart == null;
         if (isTxStart) {
             this.txStart = this.core.length();
         }
 
+        var isSuccess = false;
         try {
-            return part.readSlotPointer(this, isTopLevel, writeMode, path, pathI, slotPtr);
+            var nextSlotPtr = part.readSlotPointer(this, isTopLevel, writeMode, path, pathI, slotPtr);
+            if (isTxStart) {
+                writeMapCounts();
+            }
+            isSuccess = true;
+            return nextSlotPtr;
         } finally {
             if (isTxStart) {
+                if (!isSuccess) this.pendingMapCounts.clear();
                 this.txStart = null;
             }
         }
     }
 
+    // changes the count of a counted map. maps made in the current transaction
+    // can't be seen by anyone else yet, so their counts are kept in memory and
+    // written once when the transaction ends, rather than being read and
+    // rewritten on every insert and removal.
+    void addMapCount(long countPos, long delta) throws IOException {
+        if (delta == 0) return;
+        if (this.txStart != null && countPos >= this.txStart) {
+            var count = this.pendingMapCounts.get(countPos);
+            this.pendingMapCounts.put(countPos, (count != null ? count : readLongAt(countPos)) + delta);
+        } else {
+            var count = readLongAt(countPos);
+            this.core.seek(countPos);
+            this.core.writer().writeLong(count + delta);
+        }
+    }
+
+    // removes the keys from the map at the cursor in one write,
+    // returning how many of them were in the map
+    long removeMapKeys(WriteCursor cursor, byte[][] hashes) throws Exception {
+        var removedCount = new long[1];
+        cursor.writePath(new PathPart[]{
+            new HashMapRemoveAll(hashes, removedCount)
+        });
+        return removedCount[0];
+    }
+
+    long readMapCount(long countPos) throws IOException {
+        var count = this.pendingMapCounts.get(countPos);
+        return count != null ? count : readLongAt(countPos);
+    }
+
+    private void writeMapCounts() throws IOException {
+        if (this.pendingMapCounts.isEmpty()) return;
+        var positions = new ArrayList<>(this.pendingMapCounts.keySet());
+        Collections.sort(positions);
+        var writer = this.core.writer();
+        for (var position : positions) {
+            this.core.seek(position);
+            writer.writeLong(this.pendingMapCounts.get(position));
+        }
+        this.pendingMapCounts.clear();
+    }
+
+    private long readLongAt(long position) throws IOException {
+        var bytes = new byte[8];
+        this.core.readAt(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    // a range of the file that was read along with a key-value pair
+    public static record ReadWindow(long position, byte[] bytes) {
+        public boolean contains(long pos, long size) {
+            return pos >= this.position && pos + size <= this.position + this.bytes.length;
+        }
+
+        public void read(long pos, byte[] buffer) {
+            System.arraycopy(this.bytes, (int) (pos - this.position), buffer, 0, buffer.length);
+        }
+    }
+
+    // reads a key-value pair along with the bytes around it, and keeps
+    // them for the cursor that the current lookup returns
+    private void readKeyValuePairAround(long position, byte[] kvPairBytes) throws IOException {
+        var start = Math.max(DATABASE_START, position - this.readAroundSize);
+        var end = Math.min(this.core.length(), position + kvPairBytes.length + this.readAroundSize);
+        var bytes = new byte[(int) (end - start)];
+        this.core.readAt(start, bytes);
+        var window = new ReadWindow(start, bytes);
+        window.read(position, kvPairBytes);
+        this.readWindows.set(window);
+    }
+
+    // returns the window read by the last lookup on this thread, if any
+    ReadWindow takeReadWindow() {
+        if (this.readAroundSize == 0) return null;
+        var window = this.readWindows.get();
+        if (window != null) this.readWindows.remove();
+        return window;
+    }
+
+    // reads an index block and decodes its slots. the returned
+    // array may be shared, so it must not be modified.
+    protected Slot[] readSlotBlock(long position, int blockSize, boolean isTopLevel) throws IOException {
+        // the top-level list is modified in place, and so is anything
+        // made during the current transaction
+        var isCacheable = this.slotBlockCache != null
+            && !isTopLevel
+            && this.header.tag == Tag.ARRAY_LIST
+            && (this.txStart == null || position < this.txStart);
+
+        if (isCacheable) {
+            var cachedBlock = this.slotBlockCache.get(position);
+            if (cachedBlock != null) return cachedBlock;
+        }
+
+        var indexBlock = new byte[blockSize];
+        this.core.readAt(position, indexBlock);
+        // linked array list has larger slots so we need to skip over the rest
+        var slotSize = slotSize(blockSize);
+        var slotBlock = new Slot[blockSize / slotSize];
+        for (int i = 0; i < slotBlock.length; i++) {
+            slotBlock[i] = Slot.fromBytes(indexBlock, i * slotSize);
+        }
+
+        if (isCacheable) {
+            this.slotBlockCache.put(position, slotBlock);
+        }
+
+        return slotBlock;
+    }
+
+    // hash map blocks can have a different number of slots than
+    // array list blocks, so the slot size can't come from SLOT_COUNT
+    private static int slotSize(int blockSize) {
+        return blockSize == LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE ? LinkedArrayListSlot.length : Slot.length;
+    }
+
+    // compact index blocks only store the slots that are in use, after a
+    // bitmap of which ones they are, so they are much smaller than a regular
+    // index block when only a few slots are used. they are never changed in
+    // place, so writing to one expands it into a regular index block first.
+    byte[] toCompactIndexBlock(byte[] indexBlock) {
+        var bitmap = new byte[this.compactBitmapSize];
+        var slotsBytes = new byte[this.mapIndexBlockSize];
+        var slotCount = 0;
+        for (int i = 0; i < this.mapSlotCount; i++) {
+            if (Slot.fromBytes(indexBlock, i * Slot.length).empty()) continue;
+            bitmap[i / 8] |= (byte) (1 << (i % 8));
+            System.arraycopy(indexBlock, i * Slot.length, slotsBytes, slotCount * Slot.length, Slot.length);
+            slotCount += 1;
+        }
+        var compactBlock = new byte[this.compactBitmapSize + slotCount * Slot.length];
+        System.arraycopy(bitmap, 0, compactBlock, 0, this.compactBitmapSize);
+        System.arraycopy(slotsBytes, 0, compactBlock, this.compactBitmapSize, slotCount * Slot.length);
+        return compactBlock;
+    }
+
+    // reads a compact index block and decodes it into the same
+    // slots that a regular index block would have
+    protected Slot[] readCompactSlotBlock(long position, boolean isTopLevel) throws IOException {
+        var isCacheable = this.slotBlockCache != null
+            && !isTopLevel
+            && this.header.tag == Tag.ARRAY_LIST
+            && (this.txStart == null || position < this.txStart);
+
+        if (isCacheable) {
+            var cachedBlock = this.slotBlockCache.get(position);
+            if (cachedBlock != null) return cachedBlock;
+        }
+
+        var bitmap = new byte[this.compactBitmapSize];
+        this.core.readAt(position, bitmap);
+        var slotCount = 0;
+        for (var b : bitmap) {
+            slotCount += Integer.bitCount(b & 0xFF);
+        }
+        var slotsBytes = new byte[slotCount * Slot.length];
+        this.core.readAt(position + this.compactBitmapSize, slotsBytes);
+
+        var slotBlock = new Slot[this.mapSlotCount];
+        var slotI = 0;
+        for (int i = 0; i < slotBlock.length; i++) {
+            if ((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+                slotBlock[i] = Slot.fromBytes(slotsBytes, slotI * Slot.length);
+                slotI += 1;
+            } else {
+                slotBlock[i] = new Slot();
+            }
+        }
+
+        if (isCacheable) {
+            this.slotBlockCache.put(position, slotBlock);
+        }
+
+        return slotBlock;
+    }
+
+    // returns the position of a slot in a compact index block
+    long compactSlotPosition(long position, Slot[] slotBlock, int i) {
+        var slotI = 0;
+        for (int j = 0; j < i; j++) {
+            if (!slotBlock[j].empty()) slotI += 1;
+        }
+        return position + this.compactBitmapSize + slotI * Slot.length;
+    }
+
+    // reads a hash map index block of either kind as a regular index block
+    private byte[] readIndexBlockBytes(long position, boolean isCompact) throws IOException {
+        var indexBlock = new byte[this.mapIndexBlockSize];
+        if (isCompact) {
+            var slotBlock = readCompactSlotBlock(position, false);
+            for (int i = 0; i < this.mapSlotCount; i++) {
+                System.arraycopy(slotBlock[i].toBytes(), 0, indexBlock, i * Slot.length, Slot.length);
+            }
+        } else {
+            this.core.readAt(position, indexBlock);
+        }
+        return indexBlock;
+    }
+
+    // reads many slot blocks at once. they are read in offset order, and
+    // blocks that are next to each other (or nearly) are combined into a
+    // single read, so reading the siblings of a block is mostly sequential.
+    protected Slot[][] readSlotBlocks(List<Long> positions, int blockSize, boolean isTopLevel) throws IOException {
+        var blocks = new Slot[positions.size()][];
+        var isCacheable = this.slotBlockCache != null
+            && !isTopLevel
+            && this.header.tag == Tag.ARRAY_LIST;
+
+        // sort the indexes of the blocks we still need by their position
+        var order = new ArrayList<Integer>();
+        for (int i = 0; i < positions.size(); i++) {
+            var position = positions.get(i);
+            if (isCacheable && (this.txStart == null || position < this.txStart)) {
+                blocks[i] = this.slotBlockCache.get(position);
+                if (blocks[i] != null) continue;
+            }
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(positions.get(a), positions.get(b)));
+
+        var slotSize = slotSize(blockSize);
+        var runStart = 0;
+        while (runStart < order.size()) {
+            // extend the run while the gap to the next block is at most one block
+            var runEnd = runStart + 1;
+            while (runEnd < order.size()
+                && positions.get(order.get(runEnd)) - positions.get(order.get(runEnd - 1)) <= blockSize * 2L) {
+                runEnd += 1;
+            }
+
+            var start = positions.get(order.get(runStart));
+            var end = positions.get(order.get(runEnd - 1)) + blockSize;
+            var bytes = new byte[(int) (end - start)];
+            this.core.readAt(start, bytes);
+
+            for (int i = runStart; i < runEnd; i++) {
+                var index = order.get(i);
+                var position = positions.get(index);
+                var offset = (int) (position - start);
+                var slotBlock = new Slot[blockSize / slotSize];
+                for (int j = 0; j < slotBlock.length; j++) {
+                    slotBlock[j] = Slot.fromBytes(bytes, offset + j * slotSize);
+                }
+                blocks[index] = slotBlock;
+                if (isCacheable && (this.txStart == null || position < this.txStart)) {
+                    this.slotBlockCache.put(position, slotBlock);
+                }
+            }
+
+            runStart = runEnd;
+        }
+
+        return blocks;
+    }
+
+    // returns the slot index of the hash at the given level of a map. this
+    // is the same as treating the hash as a big-endian, two's complement
+    // integer and taking the bitCount bits at keyOffset * bitCount, but
+    // reads them straight out of the array so it doesn't allocate.
+    static int hashIndex(byte[] hash, int keyOffset, int bitCount) {
+        var bit = keyOffset * bitCount;
+        var byteIndex = hash.length - 1 - (bit >>> 3);
+        // the bits may span two bytes, so combine the byte that holds the
+        // lowest bit with the next more significant one
+        var lo = hashByte(hash, byteIndex) & 0xFF;
+        var hi = hashByte(hash, byteIndex - 1);
+        return (((hi << 8) | lo) >> (bit & 7)) & ((1 << bitCount) - 1);
+    }
+
+    // bytes before the start of the hash are sign-extended
+    private static int hashByte(byte[] hash, int index) {
+        if (index >= 0) return hash[index];
+        return hash[0] < 0 ? -1 : 0;
+    }
+
+    // a thread's copy of the digest, along with a buffer for encoding string keys
+    static class KeyHasher {
+        MessageDigest md;
+        boolean isShared; // if the digest can't be cloned, all threads share it with a lock
+        CharsetEncoder encoder;
+        ByteBuffer buffer;
+
+        KeyHasher(MessageDigest md) {
+            try {
+                this.md = (MessageDigest) md.clone();
+                this.isShared = false;
+            } catch (CloneNotSupportedException e) {
+                this.md = md;
+                this.isShared = true;
+            }
+            this.encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.buffer = ByteBuffer.allocate(256);
+        }
+
+        ByteBuffer encode(String key) {
+            var maxSize = (int) Math.ceil(key.length() * (double) this.encoder.maxBytesPerChar());
+            if (this.buffer.capacity() < maxSize) {
+                this.buffer = ByteBuffer.allocate(maxSize);
+            }
+            this.buffer.clear();
+            this.encoder.reset();
+            this.encoder.encode(CharBuffer.wrap(key), this.buffer, true);
+            this.encoder.flush(this.buffer);
+            return this.buffer;
+        }
+
+        void hash(byte[] bytes, int len, byte[] out, int offset) {
+            if (this.isShared) {
+                synchronized (this.md) {
+                    this.digest(bytes, len, out, offset);
+                }
+            } else {
+                this.digest(bytes, len, out, offset);
+            }
+        }
+
+        private void digest(byte[] bytes, int len, byte[] out, int offset) {
+            this.md.update(bytes, 0, len);
+            try {
+                this.md.digest(out, offset, this.md.getDigestLength());
+            } catch (DigestException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
     // records
 
     public static record Header (
@@ -155,29 +733,45 @@ public class Database {
         short hashSize,
         short version,
         Tag tag,
-        byte[] magicNumber
+        byte[] magicNumber,
+        byte mapBitCount
     ) {
         public static int length = 12;
 
+        public Header(int hashId, short hashSize, short version, Tag tag, byte[] magicNumber) {
+            this(hashId, hashSize, version, tag, magicNumber, (byte) 0);
+        }
+
         public byte[] toBytes() {
             var buffer = ByteBuffer.allocate(length);
             buffer.put(this.magicNumber);
             buffer.put((byte)this.tag.ordinal());
-            buffer.putShort(this.version);
+            // the map bit count goes in the high byte of the version, so
+            // older versions will refuse to open databases that use one
+            buffer.put(this.mapBitCount);
+            buffer.put((byte) this.version);
             buffer.putShort(this.hashSize);
             buffer.putInt(this.hashId);
             return buffer.array();
         }
 
+        public static Header fromBytes(byte[] bytes) {
+            var buffer = ByteBuffer.wrap(bytes);
+            var magicNumber = new byte[3];
+            buffer.get(magicNumber);
+            var tag = Tag.valueOf(buffer.get() & 0b0111_1111);
+            var mapBitCount = buffer.get();
+            var version = (short) (buffer.get() & 0xFF);
+            var hashSize = buffer.getShort();
+            var hashId = buffer.getInt();
+            return new Header(hashId, hashSize, version, tag, magicNumber, mapBitCount);
+        }
+
         public static Header read(Core core) throws IOException {
             var reader = core.reader();
-            var magicNumber = new byte[3];
-            reader.readFully(magicNumber);
-            var tag = Tag.valueOf(reader.readByte() & 0b0111_1111);
-            var version = reader.readShort();
-            var hashSize = reader.readShort();
-            var hashId = reader.readInt();
-            return new Header(hashId, hashSize, version, tag, magicNumber);
+            var headerBytes = new byte[length];
+            reader.readFully(headerBytes);
+            return fromBytes(headerBytes);
         }
 
         public void write(Core core) throws IOException {
@@ -192,10 +786,17 @@ public class Database {
             if (this.version > VERSION) {
                 throw new InvalidVersionException();
             }
+            if (this.mapBitCount != 0 && (this.mapBitCount < MIN_MAP_BIT_COUNT || this.mapBitCount > MAX_MAP_BIT_COUNT)) {
+                throw new InvalidVersionException();
+            }
+        }
+
+        public int mapBitCountOrDefault() {
+            return this.mapBitCount == 0 ? BIT_COUNT : this.mapBitCount;
         }
 
         public Header withTag(Tag tag) {
-            return new Header(this.hashId, this.hashSize, this.version, tag, this.magicNumber);
+            return new Header(this.hashId, this.hashSize, this.version, tag, this.magicNumber, this.mapBitCount);
         }
     }
 
@@ -210,9 +811,8 @@ public class Database {
         }
 
         public static ArrayListHeader fromBytes(byte[] bytes) {
-            var buffer = ByteBuffer.wrap(bytes);
-            var size = checkLong(buffer.getLong());
-            var ptr = checkLong(buffer.getLong());
+            var size = checkLong(Slot.getLong(bytes, 0));
+            var ptr = checkLong(Slot.getLong(bytes, 8));
             return new ArrayListHeader(ptr, size);
         }
 
@@ -244,10 +844,9 @@ public class Database {
         }
 
         public static LinkedArrayListHeader fromBytes(byte[] bytes) {
-            var buffer = ByteBuffer.wrap(bytes);
-            var size = checkLong(buffer.getLong());
-            var ptr = checkLong(buffer.getLong());
-            var shift = (byte) (buffer.get() & 0b0011_1111);
+            var size = checkLong(Slot.getLong(bytes, 0));
+            var ptr = checkLong(Slot.getLong(bytes, 8));
+            var shift = (byte) (bytes[16] & 0b0011_1111);
             return new LinkedArrayListHeader(shift, ptr, size);
         }
 
@@ -270,20 +869,14 @@ public class Database {
         }
 
         public static KeyValuePair fromBytes(byte[] bytes, int hashSize) {
-            var buffer = ByteBuffer.wrap(bytes);
-            var hash = new byte[hashSize];
-            buffer.get(hash);
-            var keySlotBytes = new byte[Slot.length];
-            buffer.get(keySlotBytes);
-            var keySlot = Slot.fromBytes(keySlotBytes);
-            var valueSlotBytes = new byte[Slot.length];
-            buffer.get(valueSlotBytes);
-            var valueSlot = Slot.fromBytes(valueSlotBytes);
+            var hash = Arrays.copyOfRange(bytes, 0, hashSize);
+            var keySlot = Slot.fromBytes(bytes, hashSize);
+            var valueSlot = Slot.fromBytes(bytes, hashSize + Slot.length);
             return new KeyValuePair(valueSlot, keySlot, hash);
         }
     }
 
-    public static sealed interface PathPart permits ArrayListInit, ArrayListGet, ArrayListAppend, ArrayListSlice, LinkedArrayListInit, LinkedArrayListGet, LinkedArrayListAppend, LinkedArrayListSlice, LinkedArrayListConcat, LinkedArrayListInsert, LinkedArrayListRemove, HashMapInit, HashMapGet, HashMapRemove, WriteData, Context {
+    public static sealed interface PathPart permits ArrayListInit, ArrayListGet, ArrayListAppend, ArrayListSlice, LinkedArrayListInit, LinkedArrayListGet, LinkedArrayListAppend, LinkedArrayListSlice, LinkedArrayListConcat, LinkedArrayListInsert, LinkedArrayListRemove, HashMapInit, HashMapGet, HashMapRemove, HashMapPutAll, HashMapRemoveAll, WriteData, Context {
         public SlotPointer readSlotPointer(Database db, boolean isTopLevel, WriteMode writeMode, PathPart[] path, int pathI, SlotPointer slotPtr) throws Exception;
     }
 
@@ -299,13 +892,14 @@ public class Database {
                     // write the array list header
                     db.core.seek(DATABASE_START);
                     var arrayListPtr = DATABASE_START + TopLevelArrayListHeader.length;
-                    writer.write((new TopLevelArrayListHeader(
-                        0,
-                        new ArrayListHeader(arrayListPtr, 0))
-                    ).toBytes());
-
-                    // write the first block
-                    writer.write(new byte[INDEX_BLOCK_SIZE]);
+                    db.core.writeAll(
+                        (new TopLevelArrayListHeader(
+                            0,
+                            new ArrayListHeader(arrayListPtr, 0))
+                        ).toBytes(),
+                        // the first block
+                        new byte[INDEX_BLOCK_SIZE]
+                    );
 
                     // update db header
                     db.core.seek(0);
@@ -327,11 +921,10 @@ public class Database {
                     var arrayListStart = db.core.length();
                     db.core.seek(arrayListStart);
                     var arrayListPtr = arrayListStart + ArrayListHeader.length;
-                    writer.write(new ArrayListHeader(
-                        arrayListPtr,
-                        0
-                    ).toBytes());
-                    writer.write(new byte[INDEX_BLOCK_SIZE]);
+                    db.core.writeAll(
+                        new ArrayListHeader(arrayListPtr, 0).toBytes(),
+                        new byte[INDEX_BLOCK_SIZE]
+                    );
                     // make slot point to list
                     var nextSlotPtr = new SlotPointer(position, new Slot(arrayListStart, Tag.ARRAY_LIST));
                     db.core.seek(position);
@@ -339,7 +932,6 @@ public class Database {
                     return db.readSlotPointer(writeMode, path, pathI + 1, nextSlotPtr);
                 }
                 case ARRAY_LIST -> {
-                    var reader = db.core.reader();
                     var writer = db.core.writer();
 
                     var arrayListStart = slotPtr.slot().value();
@@ -348,20 +940,17 @@ public class Database {
                     if (db.txStart != null) {
                         if (arrayListStart < db.txStart) {
                             // read existing block
-                            db.core.seek(arrayListStart);
                             var headerBytes = new byte[ArrayListHeader.length];
-                            reader.readFully(headerBytes);
+                            db.core.readAt(arrayListStart, headerBytes);
                             var header = ArrayListHeader.fromBytes(headerBytes);
-                            db.core.seek(header.ptr);
                             var arrayListIndexBlock = new byte[INDEX_BLOCK_SIZE];
-                            reader.readFully(arrayListIndexBlock);
+                            db.core.readAt(header.ptr, arrayListIndexBlock);
                             // copy to the end
                             arrayListStart = db.core.length();
                             db.core.seek(arrayListStart);
                             var nextArrayListPtr = arrayListStart + ArrayListHeader.length;
                             header = header.withPtr(nextArrayListPtr);
-                            writer.write(header.toBytes());
-                            writer.write(arrayListIndexBlock);
+                            db.core.writeAll(header.toBytes(), arrayListIndexBlock);
                         }
                     } else if (db.header.tag() == Tag.ARRAY_LIST) {
                         throw new ExpectedTxStartException();
@@ -390,10 +979,8 @@ public class Database {
             var nextArrayListStart = slotPtr.slot().value();
             var index = this.index();
 
-            db.core.seek(nextArrayListStart);
-            var reader = db.core.reader();
             var headerBytes = new byte[ArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var header = ArrayListHeader.fromBytes(headerBytes);
             if (index >= header.size || index < -header.size) {
                 throw new KeyNotFoundException();
@@ -415,13 +1002,11 @@ public class Database {
             var tag = isTopLevel ? db.header.tag : slotPtr.slot().tag();
             if (tag != Tag.ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read header
-            db.core.seek(nextArrayListStart);
             var headerBytes = new byte[ArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var origHeader = ArrayListHeader.fromBytes(headerBytes);
 
             // append
@@ -430,6 +1015,10 @@ public class Database {
 
             var writer = db.core.writer();
             if (isTopLevel) {
+                // the counts of the maps changed in this transaction
+                // must be written before it is completed
+                db.writeMapCounts();
+
                 // it is very important that we flush before updating the header,
                 // because updating the header is what completes the transaction
                 db.core.flush();
@@ -456,13 +1045,11 @@ public class Database {
 
             if (slotPtr.slot().tag() != Tag.ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read header
-            db.core.seek(nextArrayListStart);
             var headerBytes = new byte[ArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var origHeader = ArrayListHeader.fromBytes(headerBytes);
 
             // slice
@@ -494,12 +1081,10 @@ public class Database {
                     var arrayListStart = db.core.length();
                     db.core.seek(arrayListStart);
                     var arrayListPtr = arrayListStart + LinkedArrayListHeader.length;
-                    writer.write(new LinkedArrayListHeader(
-                        (byte)0,
-                        arrayListPtr,
-                        0
-                    ).toBytes());
-                    writer.write(new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE]);
+                    db.core.writeAll(
+                        new LinkedArrayListHeader((byte)0, arrayListPtr, 0).toBytes(),
+                        new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE]
+                    );
                     // make slot point to list
                     var nextSlotPtr = new SlotPointer(position, new Slot(arrayListStart, Tag.LINKED_ARRAY_LIST));
                     db.core.seek(position);
@@ -507,7 +1092,6 @@ public class Database {
                     return db.readSlotPointer(writeMode, path, pathI + 1, nextSlotPtr);
                 }
                 case LINKED_ARRAY_LIST -> {
-                    var reader = db.core.reader();
                     var writer = db.core.writer();
 
                     var arrayListStart = slotPtr.slot().value();
@@ -516,20 +1100,17 @@ public class Database {
                     if (db.txStart != null) {
                         if (arrayListStart < db.txStart) {
                             // read existing block
-                            db.core.seek(arrayListStart);
                             var headerBytes = new byte[LinkedArrayListHeader.length];
-                            reader.readFully(headerBytes);
+                            db.core.readAt(arrayListStart, headerBytes);
                             var header = LinkedArrayListHeader.fromBytes(headerBytes);
-                            db.core.seek(header.ptr);
                             var arrayListIndexBlock = new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE];
-                            reader.readFully(arrayListIndexBlock);
+                            db.core.readAt(header.ptr, arrayListIndexBlock);
                             // copy to the end
                             arrayListStart = db.core.length();
                             db.core.seek(arrayListStart);
                             var nextArrayListPtr = arrayListStart + LinkedArrayListHeader.length;
                             header = header.withPtr(nextArrayListPtr);
-                            writer.write(header.toBytes());
-                            writer.write(arrayListIndexBlock);
+                            db.core.writeAll(header.toBytes(), arrayListIndexBlock);
                         }
                     } else if (db.header.tag() == Tag.ARRAY_LIST) {
                         throw new ExpectedTxStartException();
@@ -556,10 +1137,8 @@ public class Database {
 
             var index = this.index();
 
-            db.core.seek(slotPtr.slot().value());
-            var reader = db.core.reader();
             var headerBytes = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(slotPtr.slot().value(), headerBytes);
             var header = LinkedArrayListHeader.fromBytes(headerBytes);
             if (index >= header.size() || index < -header.size()) {
                 throw new KeyNotFoundException();
@@ -578,13 +1157,11 @@ public class Database {
 
             if (slotPtr.slot().tag() != Tag.LINKED_ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read header
-            db.core.seek(nextArrayListStart);
             var headerBytes = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var origHeader = LinkedArrayListHeader.fromBytes(headerBytes);
 
             // append
@@ -606,13 +1183,11 @@ public class Database {
 
             if (slotPtr.slot().tag() != Tag.LINKED_ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read header
-            db.core.seek(nextArrayListStart);
             var headerBytes = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var origHeader = LinkedArrayListHeader.fromBytes(headerBytes);
 
             // slice
@@ -636,17 +1211,14 @@ public class Database {
 
             if (this.list().tag() != Tag.LINKED_ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read headers
-            db.core.seek(nextArrayListStart);
             var headerBytesA = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytesA);
+            db.core.readAt(nextArrayListStart, headerBytesA);
             var headerA = LinkedArrayListHeader.fromBytes(headerBytesA);
-            db.core.seek(this.list.value());
             var headerBytesB = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytesB);
+            db.core.readAt(this.list.value(), headerBytesB);
             var headerB = LinkedArrayListHeader.fromBytes(headerBytesB);
 
             // concat
@@ -668,13 +1240,11 @@ public class Database {
 
             if (slotPtr.slot().tag() != Tag.LINKED_ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read header
-            db.core.seek(nextArrayListStart);
             var headerBytes = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var origHeader = LinkedArrayListHeader.fromBytes(headerBytes);
 
             // get the key
@@ -715,13 +1285,11 @@ public class Database {
 
             if (slotPtr.slot().tag() != Tag.LINKED_ARRAY_LIST) throw new UnexpectedTagException();
 
-            var reader = db.core.reader();
             var nextArrayListStart = slotPtr.slot().value();
 
             // read header
-            db.core.seek(nextArrayListStart);
             var headerBytes = new byte[LinkedArrayListHeader.length];
-            reader.readFully(headerBytes);
+            db.core.readAt(nextArrayListStart, headerBytes);
             var origHeader = LinkedArrayListHeader.fromBytes(headerBytes);
 
             // get the key
@@ -772,12 +1340,8 @@ public class Database {
                 if (db.header.tag == Tag.NONE) {
                     db.core.seek(DATABASE_START);
 
-                    if (this.counted()) {
-                        writer.writeLong(0);
-                    }
-
-                    // write the first block
-                    writer.write(new byte[INDEX_BLOCK_SIZE]);
+                    // write the first block, after the count if there is one
+                    writer.write(new byte[(this.counted() ? 8 : 0) + db.mapIndexBlockSize]);
 
                     // update db header
                     db.core.seek(0);
@@ -798,10 +1362,8 @@ public class Database {
                     var writer = db.core.writer();
                     var mapStart = db.core.length();
                     db.core.seek(mapStart);
-                    if (this.counted()) {
-                        writer.writeLong(0);
-                    }
-                    writer.write(new byte[INDEX_BLOCK_SIZE]);
+                    // the count (if there is one) and the block both start out as zeros
+                    writer.write(new byte[(this.counted() ? 8 : 0) + db.mapIndexBlockSize]);
                     // make slot point to map
                     var nextSlotPr = new SlotPointer(position, new Slot(mapStart, tag));
                     db.core.seek(position);
@@ -821,7 +1383,6 @@ public class Database {
                         }
                     }
 
-                    var reader = db.core.reader();
                     var writer = db.core.writer();
 
                     var mapStart = slotPtr.slot().value();
@@ -829,16 +1390,13 @@ public class Database {
                     // copy it to the end unless it was made in this transaction
                     if (db.txStart != null) {
                         if (mapStart < db.txStart) {
-                            // read existing block
-                            db.core.seek(mapStart);
-                            Long mapCountMaybe = this.counted() ? reader.readLong() : null;
-                            var mapIndexBlock = new byte[INDEX_BLOCK_SIZE];
-                            reader.readFully(mapIndexBlock);
+                            // read existing block, along with the count if there is one
+                            var mapBytes = new byte[(this.counted() ? 8 : 0) + db.mapIndexBlockSize];
+                            db.core.readAt(mapStart, mapBytes);
                             // copy to the end
                             mapStart = db.core.length();
                             db.core.seek(mapStart);
-                            if (mapCountMaybe != null) writer.writeLong(mapCountMaybe);
-                            writer.write(mapIndexBlock);
+                            writer.write(mapBytes);
                         }
                     } else if (db.header.tag == Tag.ARRAY_LIST) {
                         throw new ExpectedTxStartException();
@@ -867,15 +1425,10 @@ public class Database {
 
             long indexPos = counted ? slotPtr.slot().value() + 8 : slotPtr.slot().value();
 
-            var res = db.readMapSlot(indexPos, db.checkHash(this.target()), (byte)0, writeMode, isTopLevel, this.target());
+            var res = db.readMapSlot(indexPos, false, db.checkHash(this.target()), 0, writeMode, isTopLevel, this.target());
 
             if (writeMode == WriteMode.READ_WRITE && counted && res.isEmpty()) {
-                var reader = db.core.reader();
-                var writer = db.core.writer();
-                db.core.seek(slotPtr.slot().value());
-                long mapCount = reader.readLong();
-                db.core.seek(slotPtr.slot().value());
-                writer.writeLong(mapCount + 1);
+                db.addMapCount(slotPtr.slot().value(), 1);
             }
 
             return db.readSlotPointer(writeMode, path, pathI + 1, res.slotPtr);
@@ -898,18 +1451,13 @@ public class Database {
 
             boolean keyFound = true;
             try {
-                db.removeMapSlot(indexPos, db.checkHash(this.hash()), (byte)0, isTopLevel);
+                db.removeMapSlot(indexPos, false, db.checkHash(this.hash()), 0, isTopLevel);
             } catch (KeyNotFoundException e) {
                 keyFound = false;
             }
 
             if (writeMode == WriteMode.READ_WRITE && counted && keyFound) {
-                var reader = db.core.reader();
-                var writer = db.core.writer();
-                db.core.seek(slotPtr.slot().value());
-                long mapCount = reader.readLong();
-                db.core.seek(slotPtr.slot().value());
-                writer.writeLong(mapCount - 1);
+                db.addMapCount(slotPtr.slot().value(), -1);
             }
 
             if (!keyFound) throw new KeyNotFoundException();
@@ -918,6 +1466,81 @@ public class Database {
         }
     }
 
+    // puts many key-value pairs in one pass over the map. the keys and values
+    // are parallel to the hashes. a null key means the key isn't written, so
+    // an existing entry keeps the key it has.
+    public static record HashMapPutAll(byte[][] hashes, WriteableData[] keys, WriteableData[] values) implements PathPart {
+        public SlotPointer readSlotPointer(Database db, boolean isTopLevel, WriteMode writeMode, PathPart[] path, int pathI, SlotPointer slotPtr) throws Exception {
+            if (writeMode == WriteMode.READ_ONLY) throw new WriteNotAllowedException();
+
+            boolean counted = false;
+            switch (slotPtr.slot().tag()) {
+                case NONE -> throw new KeyNotFoundException();
+                case HASH_MAP, HASH_SET -> {}
+                case COUNTED_HASH_MAP, COUNTED_HASH_SET -> counted = true;
+                default -> throw new UnexpectedTagException();
+            }
+
+            long indexPos = counted ? slotPtr.slot().value() + 8 : slotPtr.slot().value();
+
+            // if a hash appears more than once, the last one wins
+            var lastIndexes = new HashMap<ByteBuffer, Integer>();
+            for (int i = 0; i < this.hashes().length; i++) {
+                lastIndexes.put(ByteBuffer.wrap(db.checkHash(this.hashes()[i])), i);
+            }
+            var entries = new ArrayList<>(lastIndexes.values());
+
+            var addedCount = db.writeMapSlots(indexPos, this, entries, 0, isTopLevel);
+
+            if (counted) {
+                db.addMapCount(slotPtr.slot().value(), addedCount);
+            }
+
+            return db.readSlotPointer(writeMode, path, pathI + 1, slotPtr);
+        }
+    }
+
+    // removes many keys in one pass over the map. keys that
+    // aren't in the map are ignored. if removedCount is given,
+    // the number of keys that were removed is stored in it.
+    public static record HashMapRemoveAll(byte[][] hashes, long[] removedCount) implements PathPart {
+        public HashMapRemoveAll(byte[][] hashes) {
+            this(hashes, null);
+        }
+
+        public SlotPointer readSlotPointer(Database db, boolean isTopLevel, WriteMode writeMode, PathPart[] path, int pathI, SlotPointer slotPtr) throws Exception {
+            if (writeMode == WriteMode.READ_ONLY) throw new WriteNotAllowedException();
+
+            var removedCount = this.removedCount() != null ? this.removedCount() : new long[1];
+            removedCount[0] = 0;
+            boolean counted = false;
+            switch (slotPtr.slot().tag()) {
+                case NONE -> {
+                    return db.readSlotPointer(writeMode, path, pathI + 1, slotPtr);
+                }
+                case HASH_MAP, HASH_SET -> {}
+                case COUNTED_HASH_MAP, COUNTED_HASH_SET -> counted = true;
+                default -> throw new UnexpectedTagException();
+            }
+
+            long indexPos = counted ? slotPtr.slot().value() + 8 : slotPtr.slot().value();
+
+            var entries = new ArrayList<Integer>();
+            for (int i = 0; i < this.hashes().length; i++) {
+                db.checkHash(this.hashes()[i]);
+                entries.add(i);
+            }
+
+            db.removeMapSlots(indexPos, false, this.hashes(), entries, 0, isTopLevel, removedCount);
+
+            if (counted) {
+                db.addMapCount(slotPtr.slot().value(), -removedCount[0]);
+            }
+
+            return db.readSlotPointer(writeMode, path, pathI + 1, slotPtr);
+        }
+    }
+
     public static record WriteData(WriteableData data) implements PathPart {
         public SlotPointer readSlotPointer(Database db, boolean isTopLevel, WriteMode writeMode, PathPart[] path, int pathI, SlotPointer slotPtr) throws Exception {
             if (writeMode == WriteMode.READ_ONLY) throw new WriteNotAllowedException();
@@ -927,50 +1550,17 @@ public class Database {
 
             var writer = db.core.writer();
 
-            var data = this.data();
             Slot slot = null;
-            if (data == null) {
-                slot = new Slot();
-            } else if (data instanceof Slot s) {
-                slot = s;
-            } else if (data instanceof Uint i) {
-                if (i.value() < 0) {
-                    throw new IllegalArgumentException("Uint must not be negative");
-                }
-                slot = new Slot(i.value(), Tag.UINT);
-            } else if (data instanceof Int i) {
-                slot = new Slot(i.value(), Tag.INT);
-            } else if (data instanceof Float f) {
-                var buffer = ByteBuffer.allocate(8);
-                buffer.putDouble(f.value());
-                buffer.position(0);
-                slot = new Slot(buffer.getLong(), Tag.FLOAT);
-            } else if (data instanceof Bytes bytes) {
-                if (bytes.isShort()) {
-                    var buffer = ByteBuffer.allocate(8);
-                    buffer.put(bytes.value());
-                    if (bytes.formatTag() != null) {
-                        buffer.position(6);
-                        buffer.put(bytes.formatTag());
-                    }
-                    buffer.position(0);
-                    slot = new Slot(buffer.getLong(), Tag.SHORT_BYTES, bytes.formatTag() != null);
-                } else {
-                    var nextCursor = new WriteCursor(slotPtr, db);
-                    var cursorWriter = nextCursor.writer();
-                    cursorWriter.formatTag = bytes.formatTag(); // the writer will write the format tag when finish is called
-                    cursorWriter.write(bytes.value());
-                    cursorWriter.finish();
-                    slot = cursorWriter.slot;
-                }
+            if (this.data() instanceof Bytes bytes && !bytes.isShort()) {
+                // long bytes are streamed through a cursor writer
+                var nextCursor = new WriteCursor(slotPtr, db);
+                var cursorWriter = nextCursor.writer();
+                cursorWriter.formatTag = bytes.formatTag(); // the writer will write the format tag when finish is called
+                cursorWriter.write(bytes.value());
+                cursorWriter.finish();
+                slot = cursorWriter.slot;
             } else {
-                throw new IllegalArgumentException();
-            }
-
-            // this bit allows us to distinguish between a slot explicitly set to NONE
-            // and a slot that hasn't been set yet
-            if (slot.tag() == Tag.NONE) {
-                slot = slot.withFull(true);
+                slot = db.writeDataSlot(this.data(), false);
             }
 
             db.core.seek(position);
@@ -1059,11 +1649,12 @@ public class Database {
         }
 
         public static LinkedArrayListSlot fromBytes(byte[] bytes) {
-            var buffer = ByteBuffer.wrap(bytes);
-            var slotBytes = new byte[Slot.length];
-            buffer.get(slotBytes);
-            var slot = Slot.fromBytes(slotBytes);
-            var size = checkLong(buffer.getLong());
+            return fromBytes(bytes, 0);
+        }
+
+        public static LinkedArrayListSlot fromBytes(byte[] bytes, int offset) {
+            var slot = Slot.fromBytes(bytes, offset);
+            var size = checkLong(Slot.getLong(bytes, offset + Slot.length));
             return new LinkedArrayListSlot(size, slot);
         }
     }
@@ -1103,25 +1694,35 @@ public class Database {
     public static class InvalidFormatTagSizeException extends DatabaseException {}
     public static class UnexpectedWriterPositionException extends DatabaseException {}
     public static class MaxShiftExceededException extends DatabaseException {}
+    public static class TransactionConflictException extends DatabaseException {}
 
     // hash_map
 
     public static record HashMapGetResult(SlotPointer slotPtr, boolean isEmpty) {}
 
-    private HashMapGetResult readMapSlot(long indexPos, byte[] keyHash, byte keyOffset, WriteMode writeMode, boolean isTopLevel, HashMapGetTarget target) throws IOException {
-        if (keyOffset > (this.header.hashSize() * 8) / BIT_COUNT) {
+    // compact index blocks are only ever read here, because
+    // writes expand them before they get to them
+    private HashMapGetResult readMapSlot(long indexPos, boolean isCompact, byte[] keyHash, int keyOffset, WriteMode writeMode, boolean isTopLevel, HashMapGetTarget target) throws IOException {
+        if (keyOffset > (this.header.hashSize() * 8) / this.mapBitCount) {
             throw new KeyOffsetExceededException();
         }
 
-        var reader = this.core.reader();
         var writer = this.core.writer();
 
-        var i = new BigInteger(keyHash).shiftRight(keyOffset * BIT_COUNT).and(BIG_MASK).intValueExact();
+        var i = hashIndex(keyHash, keyOffset, this.mapBitCount);
         var slotPos = indexPos + (Slot.length * i);
-        this.core.seek(slotPos);
-        var slotBytes = new byte[Slot.length];
-        reader.readFully(slotBytes);
-        var slot = Slot.fromBytes(slotBytes);
+        Slot slot;
+        if (isCompact) {
+            var slotBlock = this.readCompactSlotBlock(indexPos, isTopLevel);
+            slot = slotBlock[i];
+            slotPos = compactSlotPosition(indexPos, slotBlock, i);
+        } else if (writeMode == WriteMode.READ_ONLY && this.slotBlockCache != null) {
+            slot = this.readSlotBlock(indexPos, this.mapIndexBlockSize, isTopLevel)[i];
+        } else {
+            var slotBytes = new byte[Slot.length];
+            this.core.readAt(slotPos, slotBytes);
+            slot = Slot.fromBytes(slotBytes);
+        }
 
         var ptr = slot.value();
 
@@ -1158,33 +1759,40 @@ public class Database {
                     default -> throw new UnreachableException();
                 }
             }
-            case INDEX -> {
+            case INDEX, COMPACT_INDEX -> {
                 var nextPtr = ptr;
-                if (writeMode == WriteMode.READ_WRITE && !isTopLevel) {
-                    if (this.txStart != null) {
-                        if (nextPtr < this.txStart) {
-                            // read existing block
-                            this.core.seek(ptr);
-                            var indexBlock = new byte[INDEX_BLOCK_SIZE];
-                            reader.readFully(indexBlock);
-                            // copy it to the end
-                            nextPtr = this.core.length();
-                            this.core.seek(nextPtr);
-                            writer.write(indexBlock);
-                            // make slot point to block
-                            this.core.seek(slotPos);
-                            writer.write(new Slot(nextPtr, Tag.INDEX).toBytes());
+                var isNextCompact = slot.tag() == Tag.COMPACT_INDEX;
+                if (writeMode == WriteMode.READ_WRITE) {
+                    var isCopy = isNextCompact;
+                    if (!isTopLevel) {
+                        if (this.txStart != null) {
+                            isCopy = isCopy || nextPtr < this.txStart;
+                        } else if (this.header.tag() == Tag.ARRAY_LIST) {
+                            throw new ExpectedTxStartException();
                         }
-                    } else if (this.header.tag() == Tag.ARRAY_LIST) {
-                        throw new ExpectedTxStartException();
+                    }
+                    if (isCopy) {
+                        // read existing block
+                        var indexBlock = readIndexBlockBytes(ptr, isNextCompact);
+                        // copy it to the end
+                        nextPtr = this.core.length();
+                        this.core.seek(nextPtr);
+                        writer.write(indexBlock);
+                        // make slot point to block
+                        this.core.seek(slotPos);
+                        writer.write(new Slot(nextPtr, Tag.INDEX).toBytes());
+                        isNextCompact = false;
                     }
                 }
-                return readMapSlot(nextPtr, keyHash, (byte) (keyOffset + 1), writeMode, isTopLevel, target);
+                return readMapSlot(nextPtr, isNextCompact, keyHash, keyOffset + 1, writeMode, isTopLevel, target);
             }
             case KV_PAIR -> {
-                this.core.seek(ptr);
                 var kvPairBytes = new byte[KeyValuePair.length(this.header.hashSize())];
-                reader.readFully(kvPairBytes);
+                if (writeMode == WriteMode.READ_ONLY && this.readAroundSize > 0) {
+                    readKeyValuePairAround(ptr, kvPairBytes);
+                } else {
+                    this.core.readAt(ptr, kvPairBytes);
+                }
                 var kvPair = KeyValuePair.fromBytes(kvPairBytes, this.header.hashSize());
 
                 if (Arrays.equals(kvPair.hash(), keyHash)) {
@@ -1238,16 +1846,16 @@ public class Database {
                         case READ_ONLY -> throw new KeyNotFoundException();
                         case READ_WRITE -> {
                             // append new index block
-                            if (keyOffset + 1 >= (this.header.hashSize() * 8) / BIT_COUNT) {
+                            if (keyOffset + 1 >= (this.header.hashSize() * 8) / this.mapBitCount) {
                                 throw new KeyOffsetExceededException();
                             }
-                            var nextI = new BigInteger(kvPair.hash()).shiftRight((keyOffset + 1) * BIT_COUNT).and(BIG_MASK).intValueExact();
+                            var nextI = hashIndex(kvPair.hash(), keyOffset + 1, this.mapBitCount);
                             var nextIndexPos = this.core.length();
                             this.core.seek(nextIndexPos);
-                            writer.write(new byte[INDEX_BLOCK_SIZE]);
-                            this.core.seek(nextIndexPos + (Slot.length * nextI));
-                            writer.write(slot.toBytes());
-                            var res = readMapSlot(nextIndexPos, keyHash, (byte) (keyOffset + 1), writeMode, isTopLevel, target);
+                            var nextIndexBlock = new byte[this.mapIndexBlockSize];
+                            System.arraycopy(slot.toBytes(), 0, nextIndexBlock, Slot.length * nextI, Slot.length);
+                            writer.write(nextIndexBlock);
+                            var res = readMapSlot(nextIndexPos, false, keyHash, keyOffset + 1, writeMode, isTopLevel, target);
                             this.core.seek(slotPos);
                             writer.write(new Slot(nextIndexPos, Tag.INDEX).toBytes());
                             return res;
@@ -1260,39 +1868,222 @@ public class Database {
         }
     }
 
-    private Slot removeMapSlot(long indexPos, byte[] keyHash, byte keyOffset, boolean isTopLevel) throws IOException {
-        if (keyOffset > (this.header.hashSize() * 8) / BIT_COUNT) {
+    // a read-only version of HashMapGet that doesn't block on i/o when the core
+    // is a CoreAsyncFile. each level of the trie is read asynchronously and the
+    // next read is chained onto it. completes with null if the key isn't found.
+    public CompletableFuture<SlotPointer> readMapSlotPointerAsync(SlotPointer mapSlotPtr, HashMapGetTarget target) {
+        boolean counted = false;
+        switch (mapSlotPtr.slot().tag()) {
+            case NONE -> {
+                return CompletableFuture.completedFuture(null);
+            }
+            case HASH_MAP, HASH_SET -> {}
+            case COUNTED_HASH_MAP, COUNTED_HASH_SET -> counted = true;
+            default -> {
+                return CompletableFuture.failedFuture(new UnexpectedTagException());
+            }
+        }
+
+        long indexPos = counted ? mapSlotPtr.slot().value() + 8 : mapSlotPtr.slot().value();
+
+        byte[] keyHash;
+        try {
+            keyHash = checkHash(target);
+        } catch (DatabaseException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return readMapSlotAsync(indexPos, false, keyHash, 0, target);
+    }
+
+    private CompletableFuture<SlotPointer> readMapSlotAsync(long indexPos, boolean isCompact, byte[] keyHash, int keyOffset, HashMapGetTarget target) {
+        if (keyOffset > (this.header.hashSize() * 8) / this.mapBitCount) {
+            return CompletableFuture.failedFuture(new KeyOffsetExceededException());
+        }
+
+        var i = hashIndex(keyHash, keyOffset, this.mapBitCount);
+
+        // a compact block's bitmap must be read first to find where the slot is
+        CompletableFuture<Long> slotPosFuture;
+        if (isCompact) {
+            slotPosFuture = readAtAsync(indexPos, this.compactBitmapSize).thenApply(bitmap -> {
+                if ((bitmap[i / 8] & (1 << (i % 8))) == 0) return null;
+                var slotI = 0;
+                for (int j = 0; j < i; j++) {
+                    if ((bitmap[j / 8] & (1 << (j % 8))) != 0) slotI += 1;
+                }
+                return indexPos + this.compactBitmapSize + slotI * Slot.length;
+            });
+        } else {
+            slotPosFuture = CompletableFuture.completedFuture(indexPos + (Slot.length * i));
+        }
+
+        return slotPosFuture.thenCompose(slotPos -> slotPos == null ? CompletableFuture.completedFuture(null) : readAtAsync(slotPos, Slot.length).thenCompose(slotBytes -> {
+            var slot = Slot.fromBytes(slotBytes);
+            return switch (slot.tag()) {
+                case NONE -> CompletableFuture.completedFuture(null);
+                case INDEX -> readMapSlotAsync(slot.value(), false, keyHash, keyOffset + 1, target);
+                case COMPACT_INDEX -> readMapSlotAsync(slot.value(), true, keyHash, keyOffset + 1, target);
+                case KV_PAIR -> readAtAsync(slot.value(), KeyValuePair.length(this.header.hashSize())).thenApply(kvPairBytes -> {
+                    var kvPair = KeyValuePair.fromBytes(kvPairBytes, this.header.hashSize());
+                    if (!Arrays.equals(kvPair.hash(), keyHash)) return null;
+
+                    var keySlotPos = slot.value() + this.header.hashSize();
+                    var valueSlotPos = keySlotPos + Slot.length;
+                    if (target instanceof HashMapGetKVPair) {
+                        return new SlotPointer(slotPos, slot);
+                    } else if (target instanceof HashMapGetKey) {
+                        return new SlotPointer(keySlotPos, kvPair.keySlot());
+                    } else if (target instanceof HashMapGetValue) {
+                        return new SlotPointer(valueSlotPos, kvPair.valueSlot());
+                    } else {
+                        throw new IllegalArgumentException();
+                    }
+                });
+                default -> CompletableFuture.failedFuture(new UnexpectedTagException());
+            };
+        }));
+    }
+
+    // looks up the values of many keys in a map at once. at each level, the keys
+    // are grouped by the slot they go to, so an index block is only read once
+    // no matter how many keys pass through it. the key-value pairs are read
+    // last, in file order. returns null for each key that isn't in the map.
+    public SlotPointer[] readMapValueSlotPointers(SlotPointer mapSlotPtr, byte[][] keyHashes) throws IOException {
+        var result = new SlotPointer[keyHashes.length];
+
+        boolean counted = false;
+        switch (mapSlotPtr.slot().tag()) {
+            case NONE -> {
+                return result;
+            }
+            case HASH_MAP, HASH_SET -> {}
+            case COUNTED_HASH_MAP, COUNTED_HASH_SET -> counted = true;
+            default -> throw new UnexpectedTagException();
+        }
+
+        var keys = new ArrayList<Integer>(keyHashes.length);
+        for (int i = 0; i < keyHashes.length; i++) {
+            checkHash(keyHashes[i]);
+            keys.add(i);
+        }
+
+        long indexPos = counted ? mapSlotPtr.slot().value() + 8 : mapSlotPtr.slot().value();
+        var isTopLevel = mapSlotPtr.slot().value() == DATABASE_START;
+        var kvPairSlotPtrs = new ArrayList<SlotPointer>();
+        var kvPairKeys = new ArrayList<List<Integer>>();
+        readMapSlots(indexPos, false, keyHashes, keys, 0, isTopLevel, kvPairSlotPtrs, kvPairKeys);
+
+        // read the key-value pairs in the order they are in the file
+        var order = new ArrayList<Integer>(kvPairSlotPtrs.size());
+        for (int i = 0; i < kvPairSlotPtrs.size(); i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(kvPairSlotPtrs.get(a).slot().value(), kvPairSlotPtrs.get(b).slot().value()));
+
+        var kvPairBytes = new byte[KeyValuePair.length(this.header.hashSize())];
+        for (var i : order) {
+            var slot = kvPairSlotPtrs.get(i).slot();
+            this.core.readAt(slot.value(), kvPairBytes);
+            var kvPair = KeyValuePair.fromBytes(kvPairBytes, this.header.hashSize());
+            var valueSlotPos = slot.value() + this.header.hashSize() + Slot.length;
+            for (var key : kvPairKeys.get(i)) {
+                if (Arrays.equals(kvPair.hash(), keyHashes[key])) {
+                    result[key] = new SlotPointer(valueSlotPos, kvPair.valueSlot());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    // groups the indexes of the hashes by the slot they go to in
+    // a hash map index block at the given key offset
+    private List<List<Integer>> groupBySlot(byte[][] hashes, List<Integer> indexes, int keyOffset) {
+        var groups = new ArrayList<List<Integer>>(Collections.nCopies(this.mapSlotCount, (List<Integer>) null));
+        for (var index : indexes) {
+            var i = hashIndex(hashes[index], keyOffset, this.mapBitCount);
+            if (groups.get(i) == null) {
+                groups.set(i, new ArrayList<>());
+            }
+            groups.get(i).add(index);
+        }
+        return groups;
+    }
+
+    private void readMapSlots(
+        long indexPos,
+        boolean isCompact,
+        byte[][] keyHashes,
+        List<Integer> keys,
+        int keyOffset,
+        boolean isTopLevel,
+        List<SlotPointer> kvPairSlotPtrs,
+        List<List<Integer>> kvPairKeys
+    ) throws IOException {
+        if (keyOffset > (this.header.hashSize() * 8) / this.mapBitCount) {
+            throw new KeyOffsetExceededException();
+        }
+
+        var groups = groupBySlot(keyHashes, keys, keyOffset);
+
+        var indexBlock = isCompact ? this.readCompactSlotBlock(indexPos, isTopLevel) : this.readSlotBlock(indexPos, this.mapIndexBlockSize, isTopLevel);
+        for (int i = 0; i < this.mapSlotCount; i++) {
+            if (groups.get(i) == null) continue;
+            var slot = indexBlock[i];
+            switch (slot.tag()) {
+                case NONE -> {}
+                case INDEX, COMPACT_INDEX -> readMapSlots(slot.value(), slot.tag() == Tag.COMPACT_INDEX, keyHashes, groups.get(i), keyOffset + 1, isTopLevel, kvPairSlotPtrs, kvPairKeys);
+                case KV_PAIR -> {
+                    var slotPos = isCompact ? compactSlotPosition(indexPos, indexBlock, i) : indexPos + (Slot.length * i);
+                    kvPairSlotPtrs.add(new SlotPointer(slotPos, slot));
+                    kvPairKeys.add(groups.get(i));
+                }
+                default -> throw new UnexpectedTagException();
+            }
+        }
+    }
+
+    // reads asynchronously if the core supports it, and synchronously otherwise
+    private CompletableFuture<byte[]> readAtAsync(long pos, int size) {
+        var buffer = new byte[size];
+        if (this.core instanceof CoreAsyncFile asyncCore) {
+            return asyncCore.readAtAsync(pos, buffer).thenApply(v -> buffer);
+        }
+        try {
+            this.core.readAt(pos, buffer);
+            return CompletableFuture.completedFuture(buffer);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private Slot removeMapSlot(long indexPos, boolean isCompact, byte[] keyHash, int keyOffset, boolean isTopLevel) throws IOException {
+        if (keyOffset > (this.header.hashSize() * 8) / this.mapBitCount) {
             throw new KeyOffsetExceededException();
         }
 
-        var reader = this.core.reader();
         var writer = this.core.writer();
 
         // read block
-        var slotBlock = new Slot[SLOT_COUNT];
-        this.core.seek(indexPos);
-        var indexBlock = new byte[INDEX_BLOCK_SIZE];
-        reader.readFully(indexBlock);
-        var buffer = ByteBuffer.wrap(indexBlock);
+        var slotBlock = new Slot[this.mapSlotCount];
+        var indexBlock = readIndexBlockBytes(indexPos, isCompact);
         for (int i = 0; i < slotBlock.length; i++) {
-            var slotBytes = new byte[Slot.length];
-            buffer.get(slotBytes);
-            slotBlock[i] = Slot.fromBytes(slotBytes);
+            slotBlock[i] = Slot.fromBytes(indexBlock, i * Slot.length);
         }
 
         // get the current slot
-        var i = new BigInteger(keyHash).shiftRight(keyOffset * BIT_COUNT).and(BIG_MASK).intValueExact();
+        var i = hashIndex(keyHash, keyOffset, this.mapBitCount);
         var slotPos = indexPos + (Slot.length * i);
         var slot = slotBlock[i];
 
         // get the slot that will replace the current slot
         var nextSlot = switch (slot.tag()) {
             case NONE -> throw new KeyNotFoundException();
-            case INDEX -> removeMapSlot(slot.value(), keyHash, (byte) (keyOffset + 1), isTopLevel);
+            case INDEX, COMPACT_INDEX -> removeMapSlot(slot.value(), slot.tag() == Tag.COMPACT_INDEX, keyHash, keyOffset + 1, isTopLevel);
             case KV_PAIR -> {
-                this.core.seek(slot.value());
                 var kvPairBytes = new byte[KeyValuePair.length(this.header.hashSize())];
-                reader.readFully(kvPairBytes);
+                this.core.readAt(slot.value(), kvPairBytes);
                 var kvPair = KeyValuePair.fromBytes(kvPairBytes, this.header.hashSize());
                 if (Arrays.equals(kvPair.hash(), keyHash)) {
                     yield new Slot();
@@ -1344,29 +2135,339 @@ public class Database {
         // there was more than one used slot, or a single INDEX slot,
         // so we must keep this index block
 
+        // compact blocks can't be changed in place
+        var isCopy = isCompact;
         if (!isTopLevel) {
             if (this.txStart != null) {
-                if (indexPos < this.txStart) {
-                    // copy index block to the end
-                    var nextIndexPos = this.core.length();
-                    this.core.seek(nextIndexPos);
-                    writer.write(indexBlock);
-                    // update the slot
-                    var nextSlotPos = nextIndexPos + (Slot.length * i);
-                    this.core.seek(nextSlotPos);
-                    writer.write(nextSlot.toBytes());
-                    return new Slot(nextIndexPos, Tag.INDEX);
-                }
+                isCopy = isCopy || indexPos < this.txStart;
             } else if (this.header.tag() == Tag.ARRAY_LIST) {
                 throw new ExpectedTxStartException();
             }
         }
 
+        if (isCopy) {
+            // copy index block to the end
+            var nextIndexPos = this.core.length();
+            this.core.seek(nextIndexPos);
+            writer.write(indexBlock);
+            // update the slot
+            var nextSlotPos = nextIndexPos + (Slot.length * i);
+            this.core.seek(nextSlotPos);
+            writer.write(nextSlot.toBytes());
+            return new Slot(nextIndexPos, Tag.INDEX);
+        }
+
         this.core.seek(slotPos);
         writer.write(nextSlot.toBytes());
         return new Slot(indexPos, Tag.INDEX);
     }
 
+    // writes a group of entries from a HashMapPutAll into the index block, which
+    // must already be writeable. each slot in the block is visited once for all
+    // of the entries that go through it, and the block is written back once.
+    // returns the number of key-value pairs that were added.
+    private long writeMapSlots(long indexPos, HashMapPutAll putAll, List<Integer> entries, int keyOffset, boolean isTopLevel) throws IOException {
+        if (keyOffset > (this.header.hashSize() * 8) / this.mapBitCount) {
+            throw new KeyOffsetExceededException();
+        }
+
+        var writer = this.core.writer();
+        var hashes = putAll.hashes();
+
+        // group the entries by the slot they go to in this block
+        var groups = groupBySlot(hashes, entries, keyOffset);
+
+        var indexBlock = new byte[this.mapIndexBlockSize];
+        this.core.readAt(indexPos, indexBlock);
+        boolean blockChanged = false;
+        long addedCount = 0;
+
+        for (int i = 0; i < this.mapSlotCount; i++) {
+            var group = groups.get(i);
+            if (group == null) continue;
+            var slot = Slot.fromBytes(indexBlock, i * Slot.length);
+            Slot nextSlot = null;
+
+            switch (slot.tag()) {
+                case NONE -> {
+                    if (group.size() == 1) {
+                        // write a new key-value pair
+                        var entry = group.get(0);
+                        var keySlot = writeDataSlot(putAll.keys() == null ? null : putAll.keys()[entry], true);
+                        var valueSlot = writeDataSlot(putAll.values()[entry], false);
+                        var hashPos = this.core.length();
+                        this.core.seek(hashPos);
+                        writer.write(new KeyValuePair(valueSlot, keySlot, hashes[entry]).toBytes());
+                        nextSlot = new Slot(hashPos, Tag.KV_PAIR);
+                        addedCount += 1;
+                    } else {
+                        // the entries need to be split up, so put them in a new index block
+                        var nextIndexPos = this.core.length();
+                        this.core.seek(nextIndexPos);
+                        writer.write(new byte[this.mapIndexBlockSize]);
+                        addedCount += writeMapSlots(nextIndexPos, putAll, group, keyOffset + 1, isTopLevel);
+                        nextSlot = new Slot(nextIndexPos, Tag.INDEX);
+                    }
+                }
+                case INDEX, COMPACT_INDEX -> {
+                    var nextPtr = slot.value();
+                    // compact blocks can't be changed in place
+                    var isCopy = slot.tag() == Tag.COMPACT_INDEX;
+                    if (!isTopLevel) {
+                        if (this.txStart != null) {
+                            isCopy = isCopy || nextPtr < this.txStart;
+                        } else if (this.header.tag() == Tag.ARRAY_LIST) {
+                            throw new ExpectedTxStartException();
+                        }
+                    }
+                    if (isCopy) {
+                        // copy the existing block to the end
+                        var childBlock = readIndexBlockBytes(nextPtr, slot.tag() == Tag.COMPACT_INDEX);
+                        nextPtr = this.core.length();
+                        this.core.seek(nextPtr);
+                        writer.write(childBlock);
+                        nextSlot = new Slot(nextPtr, Tag.INDEX);
+                    }
+                    addedCount += writeMapSlots(nextPtr, putAll, group, keyOffset + 1, isTopLevel);
+                }
+                case KV_PAIR -> {
+                    var ptr = slot.value();
+                    var kvPairBytes = new byte[KeyValuePair.length(this.header.hashSize())];
+                    this.core.readAt(ptr, kvPairBytes);
+                    var kvPair = KeyValuePair.fromBytes(kvPairBytes, this.header.hashSize());
+
+                    if (group.size() == 1 && Arrays.equals(kvPair.hash(), hashes[group.get(0)])) {
+                        // update the existing key-value pair. a key that is given
+                        // replaces the stored one, like writing to it with WriteData,
+                        // and a missing key leaves the stored one as it is.
+                        var entry = group.get(0);
+                        var keySlot = kvPair.keySlot();
+                        if (putAll.keys() != null && putAll.keys()[entry] != null) {
+                            keySlot = writeDataSlot(putAll.keys()[entry], true);
+                        }
+                        var valueSlot = writeDataSlot(putAll.values()[entry], false);
+
+                        var isCopy = false;
+                        if (!isTopLevel) {
+                            if (this.txStart != null) {
+                                isCopy = ptr < this.txStart;
+                            } else if (this.header.tag() == Tag.ARRAY_LIST) {
+                                throw new ExpectedTxStartException();
+                            }
+                        }
+
+                        if (isCopy) {
+                            var hashPos = this.core.length();
+                            this.core.seek(hashPos);
+                            writer.write(new KeyValuePair(valueSlot, keySlot, kvPair.hash()).toBytes());
+                            nextSlot = new Slot(hashPos, Tag.KV_PAIR);
+                        } else {
+                            // the key and value slots are next to each other, so write them together
+                            var slotsBytes = new byte[Slot.length * 2];
+                            System.arraycopy(keySlot.toBytes(), 0, slotsBytes, 0, Slot.length);
+                            System.arraycopy(valueSlot.toBytes(), 0, slotsBytes, Slot.length, Slot.length);
+                            this.core.seek(ptr + this.header.hashSize());
+                            writer.write(slotsBytes);
+                        }
+                    } else {
+                        // move the existing pair into a new index block, and
+                        // then put the entries in it
+                        if (keyOffset + 1 >= (this.header.hashSize() * 8) / this.mapBitCount) {
+                            throw new KeyOffsetExceededException();
+                        }
+                        var nextI = hashIndex(kvPair.hash(), keyOffset + 1, this.mapBitCount);
+                        var nextIndexPos = this.core.length();
+                        this.core.seek(nextIndexPos);
+                        var nextIndexBlock = new byte[this.mapIndexBlockSize];
+                        System.arraycopy(slot.toBytes(), 0, nextIndexBlock, Slot.length * nextI, Slot.length);
+                        writer.write(nextIndexBlock);
+                        addedCount += writeMapSlots(nextIndexPos, putAll, group, keyOffset + 1, isTopLevel);
+                        nextSlot = new Slot(nextIndexPos, Tag.INDEX);
+                    }
+                }
+                default -> throw new UnexpectedTagException();
+            }
+
+            if (nextSlot != null) {
+                System.arraycopy(nextSlot.toBytes(), 0, indexBlock, i * Slot.length, Slot.length);
+                blockChanged = true;
+            }
+        }
+
+        if (blockChanged) {
+            this.core.seek(indexPos);
+            writer.write(indexBlock);
+        }
+
+        return addedCount;
+    }
+
+    // removes a group of hashes from the index block and returns the slot
+    // that should replace the one pointing to it. this follows the same
+    // rules as removeMapSlot, but each block is only read and written once.
+    private Slot removeMapSlots(long indexPos, boolean isCompact, byte[][] hashes, List<Integer> entries, int keyOffset, boolean isTopLevel, long[] removedCount) throws IOException {
+        if (keyOffset > (this.header.hashSize() * 8) / this.mapBitCount) {
+            throw new KeyOffsetExceededException();
+        }
+
+        var writer = this.core.writer();
+
+        // group the entries by the slot they go to in this block
+        var groups = groupBySlot(hashes, entries, keyOffset);
+
+        // read block
+        var slotBlock = new Slot[this.mapSlotCount];
+        var indexBlock = readIndexBlockBytes(indexPos, isCompact);
+        for (int i = 0; i < slotBlock.length; i++) {
+            slotBlock[i] = Slot.fromBytes(indexBlock, i * Slot.length);
+        }
+
+        boolean blockChanged = false;
+        for (int i = 0; i < this.mapSlotCount; i++) {
+            var group = groups.get(i);
+            if (group == null) continue;
+            var slot = slotBlock[i];
+            var nextSlot = switch (slot.tag()) {
+                case NONE -> slot;
+                case INDEX, COMPACT_INDEX -> removeMapSlots(slot.value(), slot.tag() == Tag.COMPACT_INDEX, hashes, group, keyOffset + 1, isTopLevel, removedCount);
+                case KV_PAIR -> {
+                    var kvPairBytes = new byte[KeyValuePair.length(this.header.hashSize())];
+                    this.core.readAt(slot.value(), kvPairBytes);
+                    var kvPair = KeyValuePair.fromBytes(kvPairBytes, this.header.hashSize());
+                    var found = false;
+                    for (var entry : group) {
+                        if (Arrays.equals(kvPair.hash(), hashes[entry])) {
+                            found = true;
+                            break;
+                        }
+                    }
+                    if (found) {
+                        removedCount[0] += 1;
+                        yield new Slot();
+                    } else {
+                        yield slot;
+                    }
+                }
+                default -> throw new UnexpectedTagException();
+            };
+            if (!nextSlot.equals(slot)) {
+                slotBlock[i] = nextSlot;
+                System.arraycopy(nextSlot.toBytes(), 0, indexBlock, i * Slot.length, Slot.length);
+                blockChanged = true;
+            }
+        }
+
+        if (!blockChanged) {
+            return new Slot(indexPos, isCompact ? Tag.COMPACT_INDEX : Tag.INDEX);
+        }
+
+        // if we're the root node, just write the new slots and finish
+        if (keyOffset == 0) {
+            this.core.seek(indexPos);
+            writer.write(indexBlock);
+            return new Slot(indexPos, Tag.INDEX);
+        }
+
+        // if there are either no used slots, or a single KV_PAIR
+        // slot, this index block doesn't need to exist anymore
+        Slot slotToReturnMaybe = new Slot();
+        for (Slot blockSlot : slotBlock) {
+            if (blockSlot.tag() == Tag.NONE) continue;
+            if (slotToReturnMaybe != null && slotToReturnMaybe.tag() != Tag.NONE) {
+                slotToReturnMaybe = null;
+                break;
+            }
+            slotToReturnMaybe = blockSlot;
+        }
+        if (slotToReturnMaybe != null) {
+            switch (slotToReturnMaybe.tag()) {
+                case NONE, KV_PAIR -> {
+                    return slotToReturnMaybe;
+                }
+                default -> {}
+            }
+        }
+
+        // compact blocks can't be changed in place
+        var isCopy = isCompact;
+        if (!isTopLevel) {
+            if (this.txStart != null) {
+                isCopy = isCopy || indexPos < this.txStart;
+            } else if (this.header.tag() == Tag.ARRAY_LIST) {
+                throw new ExpectedTxStartException();
+            }
+        }
+
+        if (isCopy) {
+            // copy the updated index block to the end
+            var nextIndexPos = this.core.length();
+            this.core.seek(nextIndexPos);
+            writer.write(indexBlock);
+            return new Slot(nextIndexPos, Tag.INDEX);
+        }
+
+        this.core.seek(indexPos);
+        writer.write(indexBlock);
+        return new Slot(indexPos, Tag.INDEX);
+    }
+
+    // converts data to a slot, appending it to the end of the file if it
+    // doesn't fit in the slot itself. WriteData uses this for everything
+    // except long bytes, which it streams through a cursor writer.
+    Slot writeDataSlot(WriteableData data, boolean isKey) throws IOException {
+        Slot slot = null;
+        if (data == null) {
+            // a missing key is left empty so it can be written later
+            return isKey ? new Slot() : new Slot().withFull(true);
+        } else if (data instanceof Slot s) {
+            slot = s;
+        } else if (data instanceof Uint i) {
+            if (i.value() < 0) {
+                throw new IllegalArgumentException("Uint must not be negative");
+            }
+            slot = new Slot(i.value(), Tag.UINT);
+        } else if (data instanceof Int i) {
+            slot = new Slot(i.value(), Tag.INT);
+        } else if (data instanceof Float f) {
+            var buffer = ByteBuffer.allocate(8);
+            buffer.putDouble(f.value());
+            buffer.position(0);
+            slot = new Slot(buffer.getLong(), Tag.FLOAT);
+        } else if (data instanceof Bytes bytes) {
+            if (bytes.isShort()) {
+                var buffer = ByteBuffer.allocate(8);
+                buffer.put(bytes.value());
+                if (bytes.formatTag() != null) {
+                    buffer.position(6);
+                    buffer.put(bytes.formatTag());
+                }
+                buffer.position(0);
+                slot = new Slot(buffer.getLong(), Tag.SHORT_BYTES, bytes.formatTag() != null);
+            } else {
+                // write the size, the bytes, and the format tag in one write
+                var position = this.core.length();
+                this.core.seek(position);
+                var sizeBytes = ByteBuffer.allocate(8).putLong(bytes.value().length).array();
+                if (bytes.formatTag() != null) {
+                    this.core.writeAll(sizeBytes, bytes.value(), bytes.formatTag());
+                } else {
+                    this.core.writeAll(sizeBytes, bytes.value());
+                }
+                slot = new Slot(position, Tag.BYTES, bytes.formatTag() != null);
+            }
+        } else {
+            throw new IllegalArgumentException();
+        }
+
+        // this bit allows us to distinguish between a slot explicitly set to NONE
+        // and a slot that hasn't been set yet
+        if (slot.tag() == Tag.NONE) {
+            slot = slot.withFull(true);
+        }
+
+        return slot;
+    }
+
     // array_list
 
     public static record ArrayListAppendResult(ArrayListHeader header, SlotPointer slotPtr) {}
@@ -1385,9 +2486,9 @@ public class Database {
             // root overflow
             var nextIndexPos = this.core.length();
             this.core.seek(nextIndexPos);
-            writer.write(new byte[INDEX_BLOCK_SIZE]);
-            this.core.seek(nextIndexPos);
-            writer.write(new Slot(indexPos, Tag.INDEX).toBytes());
+            var nextIndexBlock = new byte[INDEX_BLOCK_SIZE];
+            System.arraycopy(new Slot(indexPos, Tag.INDEX).toBytes(), 0, nextIndexBlock, 0, Slot.length);
+            writer.write(nextIndexBlock);
             indexPos = nextIndexPos;
         }
 
@@ -1398,14 +2499,17 @@ public class Database {
     private SlotPointer readArrayListSlot(long indexPos, long key, byte shift, WriteMode writeMode, boolean isTopLevel) throws IOException {
         if (shift >= MAX_BRANCH_LENGTH) throw new MaxShiftExceededException();
 
-        var reader = this.core.reader();
 
         var i = (key >> (shift * BIT_COUNT)) & MASK;
         var slotPos = indexPos + (Slot.length * i);
-        this.core.seek(slotPos);
-        var slotBytes = new byte[Slot.length];
-        reader.readFully(slotBytes);
-        var slot = Slot.fromBytes(slotBytes);
+        Slot slot;
+        if (writeMode == WriteMode.READ_ONLY && this.slotBlockCache != null) {
+            slot = this.readSlotBlock(indexPos, INDEX_BLOCK_SIZE, isTopLevel)[(int) i];
+        } else {
+            var slotBytes = new byte[Slot.length];
+            this.core.readAt(slotPos, slotBytes);
+            slot = Slot.fromBytes(slotBytes);
+        }
 
         if (shift == 0) {
             return new SlotPointer(slotPos, slot);
@@ -1442,9 +2546,8 @@ public class Database {
                     if (this.txStart != null) {
                         if (nextPtr < this.txStart) {
                             // read existing block
-                            this.core.seek(ptr);
                             var indexBlock = new byte[INDEX_BLOCK_SIZE];
-                            reader.readFully(indexBlock);
+                            this.core.readAt(ptr, indexBlock);
                             // copy it to the end
                             var writer = this.core.writer();
                             nextPtr = this.core.length();
@@ -1465,7 +2568,6 @@ public class Database {
     }
 
     private ArrayListHeader readArrayListSlice(ArrayListHeader header, long size) throws IOException {
-        var reader = this.core.reader();
 
         if (size > header.size() || size < 0) {
             throw new KeyNotFoundException();
@@ -1482,9 +2584,8 @@ public class Database {
             var shift = prevShift;
             var indexPos = header.ptr;
             while (shift > nextShift) {
-                this.core.seek(indexPos);
                 var slotBytes = new byte[Slot.length];
-                reader.readFully(slotBytes);
+                this.core.readAt(indexPos, slotBytes);
                 var slot = Slot.fromBytes(slotBytes);
                 shift -= 1;
                 indexPos = slot.value();
@@ -1511,9 +2612,9 @@ public class Database {
             // root overflow
             var nextPtr = this.core.length();
             this.core.seek(nextPtr);
-            writer.write(new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE]);
-            this.core.seek(nextPtr);
-            writer.write(new LinkedArrayListSlot(header.size, new Slot(ptr, Tag.INDEX, true)).toBytes());
+            var nextIndexBlock = new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE];
+            System.arraycopy(new LinkedArrayListSlot(header.size, new Slot(ptr, Tag.INDEX, true)).toBytes(), 0, nextIndexBlock, 0, LinkedArrayListSlot.length);
+            writer.write(nextIndexBlock);
             ptr = nextPtr;
             shift += 1;
             slotPtr = readLinkedArrayListSlot(ptr, key, shift, writeMode, isTopLevel);
@@ -1604,20 +2705,15 @@ public class Database {
     private LinkedArrayListSlotPointer readLinkedArrayListSlot(long indexPos, long key, byte shift, WriteMode writeMode, boolean isTopLevel) throws IOException {
         if (shift >= MAX_BRANCH_LENGTH) throw new MaxShiftExceededException();
 
-        var reader = this.core.reader();
         var writer = this.core.writer();
 
         var slotBlock = new LinkedArrayListSlot[SLOT_COUNT];
         {
-            this.core.seek(indexPos);
             var indexBlock = new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE];
-            reader.readFully(indexBlock);
+            this.core.readAt(indexPos, indexBlock);
 
-            var buffer = ByteBuffer.wrap(indexBlock);
             for (int i = 0; i < slotBlock.length; i++) {
-                var slotBytes = new byte[LinkedArrayListSlot.length];
-                buffer.get(slotBytes);
-                slotBlock[i] = LinkedArrayListSlot.fromBytes(slotBytes);
+                slotBlock[i] = LinkedArrayListSlot.fromBytes(indexBlock, i * LinkedArrayListSlot.length);
             }
         }
 
@@ -1660,9 +2756,8 @@ public class Database {
                     if (this.txStart != null) {
                         if (nextPtr < this.txStart) {
                             // read existing block
-                            this.core.seek(ptr);
                             var indexBlock = new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE];
-                            reader.readFully(indexBlock);
+                            this.core.readAt(ptr, indexBlock);
                             // copy it to the end
                             nextPtr = this.core.length();
                             this.core.seek(nextPtr);
@@ -1691,19 +2786,14 @@ public class Database {
     }
 
     private void readLinkedArrayListBlocks(long indexPos, long key, byte shift, ArrayList<LinkedArrayListBlockInfo> blocks) throws IOException {
-        var reader = this.core.reader();
 
         var slotBlock = new LinkedArrayListSlot[SLOT_COUNT];
         {
-            this.core.seek(indexPos);
             var indexBlock = new byte[LINKED_ARRAY_LIST_INDEX_BLOCK_SIZE];
-            reader.readFully(indexBlock);
+            this.core.readAt(indexPos, indexBlock);
 
-            var buffer = ByteBuffer.wrap(indexBlock);
             for (int i = 0; i < slotBlock.length; i++) {
-                var slotBytes = new byte[LinkedArrayListSlot.length];
-                buffer.get(slotBytes);
-                slotBlock[i] = LinkedArrayListSlot.fromBytes(slotBytes);
+                slotBlock[i] = LinkedArrayListSlot.fromBytes(indexBlock, i * LinkedArrayListSlot.length);
             }
         }
 
@@ -0,0 +1,133 @@
+package io.github.radarroark.xitdb;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// applies transactions submitted from any number of threads on a single
+// writer thread. the transactions that are waiting when the writer is
+// ready are applied back to back, each as its own moment in the history,
+// and then a single sync makes all of them durable at once. each
+// caller's future completes only after that sync, so many small
+// transactions share the cost of one fsync instead of each paying for
+// their own.
+//
+// a transaction that throws is not applied, and only its own future
+// fails. if the sync fails, the futures of the whole group fail.
+public class GroupCommit implements AutoCloseable {
+    public static final int DEFAULT_MAX_GROUP_SIZE = 1000;
+
+    record Request(Database.ContextFunction fn, CompletableFuture<Void> future) {}
+
+    WriteArrayList history;
+    Database db;
+    int maxGroupSize;
+    LinkedBlockingQueue<Request> queue;
+    Thread thread;
+    boolean closed;
+
+    public GroupCommit(WriteArrayList history) {
+        this(history, DEFAULT_MAX_GROUP_SIZE);
+    }
+
+    public GroupCommit(WriteArrayList history, int maxGroupSize) {
+        if (maxGroupSize < 1) throw new IllegalArgumentException("maxGroupSize must be positive");
+        this.history = history;
+        this.db = history.cursor.db;
+        this.maxGroupSize = maxGroupSize;
+        this.queue = new LinkedBlockingQueue<>();
+        this.closed = false;
+        this.thread = new Thread(this::run, "xitdb-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // queues a transaction, which runs like the function passed to
+    // appendContext with the most recent moment copied into the new one.
+    // the returned future completes when the transaction is durable.
+    public CompletableFuture<Void> submit(Database.ContextFunction fn) {
+        var future = new CompletableFuture<Void>();
+        synchronized (this) {
+            if (this.closed) throw new IllegalStateException("The group commit is closed");
+            this.queue.add(new Request(fn, future));
+        }
+        return future;
+    }
+
+    private void run() {
+        var group = new ArrayList<Request>();
+        var isClosing = false;
+        while (!isClosing) {
+            try {
+                group.add(this.queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            this.queue.drainTo(group, this.maxGroupSize - 1);
+            // close adds a request without a function after all the others
+            if (group.get(group.size() - 1).fn() == null) {
+                group.remove(group.size() - 1);
+                isClosing = true;
+            }
+            commit(group);
+            group.clear();
+        }
+    }
+
+    private void commit(ArrayList<Request> group) {
+        var applied = new ArrayList<Request>();
+        // each transaction would normally sync when it completes. this
+        // only applies to this thread, so writes from others still sync.
+        this.db.isSyncDeferred.set(true);
+        try {
+            for (var request : group) {
+                try {
+                    this.history.appendContext(this.history.getSlot(-1), request.fn());
+                    applied.add(request);
+                } catch (Throwable e) {
+                    request.future().completeExceptionally(e);
+                }
+            }
+        } finally {
+            this.db.isSyncDeferred.set(false);
+        }
+        if (applied.isEmpty()) return;
+
+        try {
+            synchronized (this.db.writeLock) {
+                this.db.core.sync();
+            }
+        } catch (Throwable e) {
+            for (var request : applied) {
+                request.future().completeExceptionally(e);
+            }
+            return;
+        }
+        for (var request : applied) {
+            request.future().complete(null);
+        }
+    }
+
+    // AutoCloseable
+
+    // stops accepting transactions, and waits for the
+    // ones that were already submitted to be committed
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            this.queue.add(new Request(null, null));
+        }
+        var isInterrupted = false;
+        while (true) {
+            try {
+                this.thread.join();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+    }
+}
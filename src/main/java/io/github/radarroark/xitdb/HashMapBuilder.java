@@ -0,0 +1,317 @@
+package io.github.radarroark.xitdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+// builds a new hash map or hash set from a stream of entries, which is
+// much faster than putting them one at a time. each key-value pair is
+// appended as soon as it is added, and only its hash and position are
+// kept. when finished, those are sorted into the order of the map's
+// slots, and the index blocks are appended bottom-up in a single pass,
+// so no block is ever written more than once. if there are more entries
+// than fit in memory, sorted runs are spilled to temporary files and
+// merged at the end.
+//
+// the result is the same map that putting the entries one at a time
+// would make, so it can be read and updated normally afterwards. if the
+// same hash is added more than once, the last one wins. the index blocks
+// below the root can optionally be written as compact index blocks, which
+// makes maps with many nearly-empty blocks much smaller.
+public class HashMapBuilder implements AutoCloseable {
+    public static final int DEFAULT_MAX_ENTRIES_IN_MEMORY = 1 << 20;
+
+    record Entry(byte[] hash, long position) {}
+
+    WriteCursor cursor;
+    Database db;
+    Tag tag;
+    int maxEntriesInMemory;
+    boolean isCompact;
+    Comparator<Entry> comparator;
+    ArrayList<Entry> entries;
+    ArrayList<File> runFiles;
+    ArrayList<Long> runSizes;
+    ArrayList<DataInputStream> runInputs;
+    boolean finished;
+
+    public HashMapBuilder(WriteCursor cursor, Tag tag) {
+        this(cursor, tag, DEFAULT_MAX_ENTRIES_IN_MEMORY);
+    }
+
+    public HashMapBuilder(WriteCursor cursor, Tag tag, int maxEntriesInMemory) {
+        this(cursor, tag, maxEntriesInMemory, false);
+    }
+
+    public HashMapBuilder(WriteCursor cursor, Tag tag, int maxEntriesInMemory, boolean isCompact) {
+        switch (tag) {
+            case HASH_MAP, HASH_SET, COUNTED_HASH_MAP, COUNTED_HASH_SET -> {}
+            default -> throw new IllegalArgumentException("Tag must be a hash map or hash set");
+        }
+        if (maxEntriesInMemory < 1) throw new IllegalArgumentException("maxEntriesInMemory must be positive");
+        this.cursor = cursor;
+        this.db = cursor.db;
+        this.tag = tag;
+        this.maxEntriesInMemory = maxEntriesInMemory;
+        this.isCompact = isCompact;
+        var maxKeyOffset = (this.db.header.hashSize() * 8) / this.db.mapBitCount;
+        // sort by the slot index at each level of the map, and then by the
+        // order they were added in (the positions always increase)
+        this.comparator = (a, b) -> {
+            for (int keyOffset = 0; keyOffset < maxKeyOffset; keyOffset++) {
+                var diff = Database.hashIndex(a.hash(), keyOffset, this.db.mapBitCount) - Database.hashIndex(b.hash(), keyOffset, this.db.mapBitCount);
+                if (diff != 0) return diff;
+            }
+            return Long.compare(a.position(), b.position());
+        };
+        this.entries = new ArrayList<>();
+        this.runFiles = new ArrayList<>();
+        this.runSizes = new ArrayList<>();
+        this.runInputs = new ArrayList<>();
+        this.finished = false;
+    }
+
+    private boolean isSet() {
+        return this.tag == Tag.HASH_SET || this.tag == Tag.COUNTED_HASH_SET;
+    }
+
+    private boolean isCounted() {
+        return this.tag == Tag.COUNTED_HASH_MAP || this.tag == Tag.COUNTED_HASH_SET;
+    }
+
+    // methods that take a string key and hash it for you
+
+    public void put(String key, Database.WriteableData data) throws Exception {
+        put(new Database.Bytes(key), data);
+    }
+
+    public void put(String key) throws Exception {
+        put(new Database.Bytes(key), null);
+    }
+
+    // methods that take a Database.Bytes key and hash it for you
+
+    public void put(Database.Bytes key, Database.WriteableData data) throws Exception {
+        put(this.db.hash(key.value()), key, data);
+    }
+
+    public void put(Database.Bytes key) throws Exception {
+        put(key, null);
+    }
+
+    // methods that take a hash directly
+
+    // the key may be null, in which case it isn't stored. the value is
+    // ignored for hash sets, since they only have keys.
+    public void put(byte[] hash, Database.WriteableData key, Database.WriteableData data) throws Exception {
+        if (this.finished) throw new IllegalStateException("The builder is already finished");
+        hash = this.db.checkHash(hash).clone();
+
+        var keySlot = this.db.writeDataSlot(key, true);
+        var valueSlot = isSet() ? new Slot() : this.db.writeDataSlot(data, false);
+        var kvPairPos = this.db.core.length();
+        this.db.core.seek(kvPairPos);
+        this.db.core.writer().write(new Database.KeyValuePair(valueSlot, keySlot, hash).toBytes());
+
+        this.entries.add(new Entry(hash, kvPairPos));
+        if (this.entries.size() >= this.maxEntriesInMemory) {
+            spill();
+        }
+    }
+
+    // writes the map and points the cursor's slot to it, replacing
+    // whatever it pointed to before
+    public WriteCursor finish() throws Exception {
+        if (this.finished) throw new IllegalStateException("The builder is already finished");
+        this.finished = true;
+
+        try {
+            var sorted = new SortedEntries(openRuns());
+            var rootBlock = buildBlock(sorted, sorted.take(), 0);
+
+            // the root block goes right after the count, if there is one
+            var mapStart = this.db.core.length();
+            this.db.core.seek(mapStart);
+            if (isCounted()) {
+                this.db.core.writeAll(ByteBuffer.allocate(8).putLong(sorted.count).array(), rootBlock);
+            } else {
+                this.db.core.writeAll(rootBlock);
+            }
+
+            this.cursor.write(new Slot(mapStart, this.tag));
+            return this.cursor;
+        } finally {
+            close();
+        }
+    }
+
+    // returns the index block for the given entry and all of the
+    // following entries that share its first keyOffset slot indexes.
+    // the blocks below it are appended first, but the returned block
+    // is left for the caller to write.
+    private byte[] buildBlock(SortedEntries sorted, Entry first, int keyOffset) throws IOException {
+        var block = new byte[this.db.mapIndexBlockSize];
+        var entry = first;
+        while (entry != null) {
+            Slot slot;
+            var next = sorted.peek();
+            if (next != null && hasSamePrefix(next, entry, keyOffset + 1)) {
+                // more than one entry goes in this slot, so they need their own block
+                var childBlock = buildBlock(sorted, entry, keyOffset + 1);
+                var childPos = this.db.core.length();
+                this.db.core.seek(childPos);
+                if (this.isCompact) {
+                    this.db.core.writer().write(this.db.toCompactIndexBlock(childBlock));
+                    slot = new Slot(childPos, Tag.COMPACT_INDEX);
+                } else {
+                    this.db.core.writer().write(childBlock);
+                    slot = new Slot(childPos, Tag.INDEX);
+                }
+            } else {
+                slot = new Slot(entry.position(), Tag.KV_PAIR);
+            }
+            System.arraycopy(slot.toBytes(), 0, block, Database.hashIndex(entry.hash(), keyOffset, this.db.mapBitCount) * Slot.length, Slot.length);
+
+            next = sorted.peek();
+            if (next == null || !hasSamePrefix(next, first, keyOffset)) break;
+            entry = sorted.take();
+        }
+        return block;
+    }
+
+    private boolean hasSamePrefix(Entry a, Entry b, int keyOffsetCount) {
+        for (int keyOffset = 0; keyOffset < keyOffsetCount; keyOffset++) {
+            if (Database.hashIndex(a.hash(), keyOffset, this.db.mapBitCount) != Database.hashIndex(b.hash(), keyOffset, this.db.mapBitCount)) return false;
+        }
+        return true;
+    }
+
+    // sorts the entries in memory and writes them to a temporary file
+    private void spill() throws IOException {
+        this.entries.sort(this.comparator);
+        var file = File.createTempFile("xitdb-builder", ".run");
+        this.runFiles.add(file);
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (var entry : this.entries) {
+                out.write(entry.hash());
+                out.writeLong(entry.position());
+            }
+        }
+        this.runSizes.add((long) this.entries.size());
+        this.entries.clear();
+    }
+
+    private ArrayList<Run> openRuns() throws IOException {
+        var runs = new ArrayList<Run>();
+        for (int i = 0; i < this.runFiles.size(); i++) {
+            var in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.runFiles.get(i))));
+            this.runInputs.add(in);
+            runs.add(new Run(null, in, this.runSizes.get(i), this.db.header.hashSize()));
+        }
+        this.entries.sort(this.comparator);
+        runs.add(new Run(this.entries.iterator(), null, this.entries.size(), this.db.header.hashSize()));
+        return runs;
+    }
+
+    // AutoCloseable
+
+    @Override
+    public void close() throws IOException {
+        this.finished = true;
+        for (var in : this.runInputs) {
+            in.close();
+        }
+        for (var file : this.runFiles) {
+            file.delete();
+        }
+        this.runInputs.clear();
+        this.runFiles.clear();
+        this.runSizes.clear();
+        this.entries.clear();
+    }
+
+    // a sorted run of entries, either in memory or in a temporary file
+    static class Run {
+        Iterator<Entry> iter;
+        DataInputStream in;
+        long remaining;
+        int hashSize;
+        Entry current;
+
+        Run(Iterator<Entry> iter, DataInputStream in, long remaining, int hashSize) throws IOException {
+            this.iter = iter;
+            this.in = in;
+            this.remaining = remaining;
+            this.hashSize = hashSize;
+            advance();
+        }
+
+        void advance() throws IOException {
+            if (this.remaining == 0) {
+                this.current = null;
+            } else if (this.iter != null) {
+                this.current = this.iter.next();
+                this.remaining -= 1;
+            } else {
+                var hash = new byte[this.hashSize];
+                this.in.readFully(hash);
+                this.current = new Entry(hash, this.in.readLong());
+                this.remaining -= 1;
+            }
+        }
+    }
+
+    // merges the runs into a single sorted stream, skipping all but the
+    // last entry added for each hash
+    class SortedEntries {
+        PriorityQueue<Run> queue;
+        Entry next;
+        long count;
+
+        SortedEntries(ArrayList<Run> runs) throws IOException {
+            this.queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> comparator.compare(a.current, b.current));
+            for (var run : runs) {
+                if (run.current != null) this.queue.add(run);
+            }
+            this.next = pull();
+        }
+
+        Entry peek() {
+            return this.next;
+        }
+
+        Entry take() throws IOException {
+            var entry = this.next;
+            if (entry != null) {
+                this.count += 1;
+                this.next = pull();
+            }
+            return entry;
+        }
+
+        private Entry pull() throws IOException {
+            Entry entry = null;
+            // entries with the same hash are next to each other, with the latest one last
+            while (!this.queue.isEmpty()) {
+                var head = this.queue.peek();
+                if (entry != null && !Arrays.equals(head.current.hash(), entry.hash())) break;
+                this.queue.poll();
+                entry = head.current;
+                head.advance();
+                if (head.current != null) this.queue.add(head);
+            }
+            return entry;
+        }
+    }
+}
@@ -9,6 +9,12 @@ public record Hasher(MessageDigest md, int id) {
         this(md, 0);
     }
 
+    // a fast, non-cryptographic hasher. the hash id is set,
+    // so databases made with it can be recognized later.
+    public static Hasher murmur3() {
+        return new Hasher(new Murmur3Digest(), Murmur3Digest.HASH_ID);
+    }
+
     public static int stringToId(String hashIdName) throws UnsupportedEncodingException {
         var bytes = hashIdName.getBytes("UTF-8");
         if (bytes.length != 4) {
@@ -0,0 +1,161 @@
+package io.github.radarroark.xitdb;
+
+import java.security.MessageDigest;
+
+// MurmurHash3 (the x64, 128-bit variant) as a MessageDigest, so it
+// can be used in a Hasher. it is not a cryptographic hash, but it is
+// much faster than SHA-1 for short keys and is well distributed.
+// the output matches the reference implementation, with h1 in the
+// first 8 bytes and h2 in the last, both little endian.
+public class Murmur3Digest extends MessageDigest implements Cloneable {
+    public static final int HASH_ID = 0x6D757233; // "mur3"
+    public static final int LENGTH = 16;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final int seed;
+    private long h1;
+    private long h2;
+    private byte[] block; // input that hasn't filled a whole 16 byte block yet
+    private int blockSize;
+    private long length;
+
+    public Murmur3Digest() {
+        this(0);
+    }
+
+    public Murmur3Digest(int seed) {
+        super("MurmurHash3");
+        this.seed = seed;
+        this.block = new byte[16];
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return LENGTH;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        this.block[this.blockSize++] = input;
+        this.length += 1;
+        if (this.blockSize == 16) {
+            mixBlock(this.block, 0);
+            this.blockSize = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        this.length += len;
+
+        // finish the partial block first
+        if (this.blockSize > 0) {
+            var size = Math.min(len, 16 - this.blockSize);
+            System.arraycopy(input, offset, this.block, this.blockSize, size);
+            this.blockSize += size;
+            offset += size;
+            len -= size;
+            if (this.blockSize < 16) return;
+            mixBlock(this.block, 0);
+            this.blockSize = 0;
+        }
+
+        // mix whole blocks straight from the input
+        while (len >= 16) {
+            mixBlock(input, offset);
+            offset += 16;
+            len -= 16;
+        }
+
+        System.arraycopy(input, offset, this.block, 0, len);
+        this.blockSize = len;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        var h1 = this.h1;
+        var h2 = this.h2;
+
+        // mix the remaining bytes
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = this.blockSize - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (this.block[i] & 0xFF);
+        }
+        for (int i = Math.min(this.blockSize, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (this.block[i] & 0xFF);
+        }
+        if (this.blockSize > 8) {
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+        if (this.blockSize > 0) {
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        h1 ^= this.length;
+        h2 ^= this.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        var out = new byte[LENGTH];
+        for (int i = 0; i < 8; i++) {
+            out[i] = (byte) (h1 >>> (i * 8));
+            out[i + 8] = (byte) (h2 >>> (i * 8));
+        }
+
+        engineReset();
+        return out;
+    }
+
+    @Override
+    protected void engineReset() {
+        this.h1 = this.seed & 0xFFFFFFFFL;
+        this.h2 = this.seed & 0xFFFFFFFFL;
+        this.blockSize = 0;
+        this.length = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        var copy = (Murmur3Digest) super.clone();
+        copy.block = this.block.clone();
+        return copy;
+    }
+
+    private void mixBlock(byte[] bytes, int offset) {
+        var k1 = getLongLE(bytes, offset);
+        var k2 = getLongLE(bytes, offset + 8);
+
+        this.h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        this.h1 = Long.rotateLeft(this.h1, 27) + this.h2;
+        this.h1 = this.h1 * 5 + 0x52dce729;
+
+        this.h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+        this.h2 = Long.rotateLeft(this.h2, 31) + this.h1;
+        this.h2 = this.h2 * 5 + 0x38495ab5;
+    }
+
+    private static long getLongLE(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,292 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class RandomAccessAsyncFile implements DataOutput, DataInput, AutoCloseable {
+    AsynchronousFileChannel channel;
+    long filePos;
+
+    public RandomAccessAsyncFile(File file, String mode) throws IOException {
+        OpenOption[] options = switch (mode) {
+            case "r" -> new OpenOption[]{StandardOpenOption.READ};
+            case "rw" -> new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+            default -> throw new IllegalArgumentException("Mode must be \"r\" or \"rw\"");
+        };
+        this.channel = AsynchronousFileChannel.open(file.toPath(), options);
+        this.filePos = 0;
+    }
+
+    public void seek(long pos) throws IOException {
+        this.filePos = pos;
+    }
+
+    public long length() throws IOException {
+        return this.channel.size();
+    }
+
+    public long position() throws IOException {
+        return this.filePos;
+    }
+
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        var byteBuffer = ByteBuffer.wrap(buffer);
+        while (byteBuffer.hasRemaining()) {
+            var size = await(this.channel.read(byteBuffer, pos + byteBuffer.position()));
+            if (size < 0) throw new EOFException();
+        }
+    }
+
+    // reads into the buffer without blocking. the future completes
+    // on one of the channel's threads once the buffer is full.
+    public CompletableFuture<Void> readAtAsync(long pos, byte[] buffer) {
+        var future = new CompletableFuture<Void>();
+        var byteBuffer = ByteBuffer.wrap(buffer);
+        this.channel.read(byteBuffer, pos, byteBuffer, new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer size, ByteBuffer byteBuffer) {
+                if (size < 0) {
+                    future.completeExceptionally(new EOFException());
+                } else if (byteBuffer.hasRemaining()) {
+                    // the read was short, so read the rest
+                    channel.read(byteBuffer, pos + byteBuffer.position(), byteBuffer, this);
+                } else {
+                    future.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, ByteBuffer byteBuffer) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public void writeAll(byte[]... buffers) throws IOException {
+        for (var buffer : buffers) {
+            this.write(buffer);
+        }
+    }
+
+    public void setLength(long len) throws IOException {
+        var size = this.channel.size();
+        if (len < size) {
+            this.channel.truncate(len);
+        } else if (len > size) {
+            // the channel can't extend the file directly, so write the last byte
+            var byteBuffer = ByteBuffer.allocate(1);
+            await(this.channel.write(byteBuffer, len - 1));
+        }
+    }
+
+    public void flush() throws IOException {
+        // writes go directly to the channel, so there is nothing to flush
+    }
+
+    public void sync() throws IOException {
+        this.channel.force(true);
+    }
+
+    private static int await(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // AutoCloseable
+
+    @Override
+    public void close() throws Exception {
+        this.channel.close();
+    }
+
+    // DataOutput
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        this.write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(int i) throws IOException {
+        this.writeByte(i);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        var byteBuffer = ByteBuffer.wrap(b, off, len);
+        while (byteBuffer.hasRemaining()) {
+            this.filePos += await(this.channel.write(byteBuffer, this.filePos));
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean b) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBoolean'");
+    }
+
+    @Override
+    public void writeByte(int i) throws IOException {
+        this.write(new byte[]{(byte) (i & 0b1111_1111)});
+    }
+
+    @Override
+    public void writeShort(int i) throws IOException {
+        var buffer = ByteBuffer.allocate(2);
+        buffer.putShort((short) (i & 0b1111_1111_1111_1111));
+        this.write(buffer.array());
+    }
+
+    @Override
+    public void writeChar(int i) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChar'");
+    }
+
+    @Override
+    public void writeInt(int i) throws IOException {
+        var buffer = ByteBuffer.allocate(4);
+        buffer.putInt(i);
+        this.write(buffer.array());
+    }
+
+    @Override
+    public void writeLong(long l) throws IOException {
+        var buffer = ByteBuffer.allocate(8);
+        buffer.putLong(l);
+        this.write(buffer.array());
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeFloat'");
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeDouble'");
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChars'");
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeUTF'");
+    }
+
+    // DataInput
+
+    @Override
+    public void readFully(byte[] buffer) throws IOException {
+        this.readAt(this.filePos, buffer);
+        this.filePos += buffer.length;
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        var buffer = new byte[len];
+        this.readFully(buffer);
+        System.arraycopy(buffer, 0, b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'skipBytes'");
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readBoolean'");
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        var b = new byte[1];
+        this.readFully(b);
+        return b[0];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedByte'");
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        var b = new byte[2];
+        this.readFully(b);
+        return ByteBuffer.wrap(b).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedShort'");
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readChar'");
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        var b = new byte[4];
+        this.readFully(b);
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        var b = new byte[8];
+        this.readFully(b);
+        return ByteBuffer.wrap(b).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readFloat'");
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readDouble'");
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readLine'");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUTF'");
+    }
+}
@@ -2,67 +2,206 @@ package io.github.radarroark.xitdb;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
 
 public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoCloseable {
     RandomAccessFile file;
-    RandomAccessMemory memory;
-    int bufferSize; // flushes when the memory is >= this size
+    FileChannel channel;
+    int pageSize;
+    int maxPages; // writes back dirty pages and evicts when there are more than this
     long filePos;
-    long memoryPos;
+    long length; // the logical length, including data that hasn't been written back
+    long diskLength; // the length of the file on disk
+    long useCount;
+    TreeMap<Long, Page> pages; // keyed by page number, so write-back happens in offset order
+    byte[] scratch; // used by the primitive writes, so they don't need to allocate
+
+    // a fixed-size region of the file. only the first `size`
+    // bytes are valid, because the last page may be partial.
+    static class Page {
+        byte[] data;
+        int size;
+        boolean dirty;
+        long lastUsed;
+
+        Page(int pageSize) {
+            this.data = new byte[pageSize];
+        }
+    }
 
-    public RandomAccessBufferedFile(File file, String mode) throws FileNotFoundException {
+    public RandomAccessBufferedFile(File file, String mode) throws IOException {
         this(file, mode, 8 * 1024 * 1024);
     }
 
-    public RandomAccessBufferedFile(File file, String mode, int bufferSize) throws FileNotFoundException {
+    public RandomAccessBufferedFile(File file, String mode, int bufferSize) throws IOException {
+        this(file, mode, bufferSize, 4096);
+    }
+
+    public RandomAccessBufferedFile(File file, String mode, int bufferSize, int pageSize) throws IOException {
+        if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
         this.file = new RandomAccessFile(file, mode);
-        this.memory = new RandomAccessMemory();
-        this.bufferSize = bufferSize;
+        this.channel = this.file.getChannel();
+        this.pageSize = pageSize;
+        this.maxPages = Math.max(1, bufferSize / pageSize);
         this.filePos = 0;
-        this.memoryPos = 0;
+        this.length = this.file.length();
+        this.diskLength = this.length;
+        this.useCount = 0;
+        this.pages = new TreeMap<>();
+        this.scratch = new byte[8];
     }
 
     public void seek(long pos) throws IOException {
-        // flush if we are going past the end of the in-memory buffer
-        if (pos > this.memoryPos + this.memory.size()) {
-            this.flush();
+        this.filePos = pos;
+    }
+
+    public synchronized long length() throws IOException {
+        return this.length;
+    }
+
+    public long position() throws IOException {
+        return this.filePos;
+    }
+
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.read(pos, buffer, 0, buffer.length);
+    }
+
+    private void read(long pos, byte[] buffer, int off, int len) throws IOException {
+        while (len > 0) {
+            var pageNum = pos / this.pageSize;
+            var pagePos = (int) (pos % this.pageSize);
+            var size = Math.min(len, this.pageSize - pagePos);
+
+            // copy from the page if it's in memory. this is the only part
+            // that needs the lock, because the writer may be modifying it.
+            // pages that aren't in memory have already been written back,
+            // so they can be read from the disk without the lock.
+            boolean inMemory;
+            synchronized (this) {
+                var page = this.pages.get(pageNum);
+                inMemory = page != null;
+                if (inMemory) {
+                    if (pagePos + size > page.size) throw new EOFException();
+                    System.arraycopy(page.data, pagePos, buffer, off, size);
+                    page.lastUsed = ++this.useCount;
+                }
+            }
+            if (!inMemory) {
+                readFromFile(pos, buffer, off, size);
+            }
+
+            pos += size;
+            off += size;
+            len -= size;
         }
+    }
 
-        this.filePos = pos;
+    private void readFromFile(long pos, byte[] buffer, int off, int len) throws IOException {
+        var byteBuffer = ByteBuffer.wrap(buffer, off, len);
+        while (byteBuffer.hasRemaining()) {
+            var size = this.channel.read(byteBuffer, pos + (byteBuffer.position() - off));
+            if (size < 0) throw new EOFException();
+        }
+    }
 
-        // if the buffer is empty, set its position to this offset as well
-        if (this.memory.size() == 0) {
-            this.memoryPos = pos;
+    // returns the page, reading it from the disk if it isn't in memory
+    private Page loadPage(long pageNum) throws IOException {
+        var page = this.pages.get(pageNum);
+        if (page == null) {
+            page = new Page(this.pageSize);
+            var pageStart = pageNum * this.pageSize;
+            page.size = (int) Math.max(0, Math.min(this.pageSize, this.diskLength - pageStart));
+            if (page.size > 0) {
+                readFromFile(pageStart, page.data, 0, page.size);
+            }
+            this.pages.put(pageNum, page);
         }
+        page.lastUsed = ++this.useCount;
+        return page;
     }
 
-    public long length() throws IOException {
-        return Math.max(this.memoryPos + this.memory.size(), this.file.length());
+    private void evictPages() throws IOException {
+        if (this.pages.size() <= this.maxPages) return;
+
+        // write everything back first, so the evicted pages are all clean
+        this.flush();
+
+        // evict the least recently used half of the pages
+        var keep = this.maxPages / 2;
+        var lastUsedTimes = new long[this.pages.size()];
+        var i = 0;
+        for (var page : this.pages.values()) {
+            lastUsedTimes[i++] = page.lastUsed;
+        }
+        Arrays.sort(lastUsedTimes);
+        var threshold = lastUsedTimes[lastUsedTimes.length - keep - 1];
+        this.pages.values().removeIf(page -> page.lastUsed <= threshold);
     }
 
-    public long position() throws IOException {
-        return this.filePos;
+    public synchronized void writeAll(byte[]... buffers) throws IOException {
+        for (var buffer : buffers) {
+            this.write(buffer, 0, buffer.length);
+        }
     }
 
-    public void setLength(long len) throws IOException {
+    public synchronized void setLength(long len) throws IOException {
         flush();
+        this.pages.clear();
         this.file.setLength(len);
+        this.length = len;
+        this.diskLength = len;
         this.filePos = Math.min(len, this.filePos);
     }
 
-    public void flush() throws IOException {
-        if (this.memory.size() > 0) {
-            this.file.seek(this.memoryPos);
-            this.file.write(this.memory.toByteArray());
+    public synchronized void flush() throws IOException {
+        // write back the dirty pages in offset order. consecutive dirty pages
+        // are combined into a single write.
+        var run = new ArrayList<ByteBuffer>();
+        long runStart = 0;
+        long nextPageNum = -1;
+        Page prevPage = null;
+        for (var entry : this.pages.entrySet()) {
+            var pageNum = entry.getKey();
+            var page = entry.getValue();
+            if (!page.dirty) continue;
+
+            var isContiguous = prevPage != null && pageNum == nextPageNum && prevPage.size == this.pageSize;
+            if (!isContiguous) {
+                writeRun(runStart, run);
+                run.clear();
+                runStart = pageNum * this.pageSize;
+            }
+
+            run.add(ByteBuffer.wrap(page.data, 0, page.size));
+            page.dirty = false;
+            prevPage = page;
+            nextPageNum = pageNum + 1;
+        }
+        writeRun(runStart, run);
+    }
 
-            this.memoryPos = 0;
-            this.memory.reset();
+    private void writeRun(long start, ArrayList<ByteBuffer> run) throws IOException {
+        if (run.isEmpty()) return;
+        var buffers = run.toArray(new ByteBuffer[0]);
+        long total = 0;
+        for (var buffer : buffers) {
+            total += buffer.remaining();
+        }
+        this.channel.position(start);
+        long written = 0;
+        while (written < total) {
+            written += this.channel.write(buffers);
         }
+        this.diskLength = Math.max(this.diskLength, start + total);
     }
 
     public void sync() throws IOException {
@@ -76,36 +215,51 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
     public void close() throws Exception {
         flush();
         this.file.close();
-        this.memory.close();
     }
 
     // DataOutput
 
     @Override
     public void write(byte[] buffer) throws IOException {
-        if (this.memory.size() + buffer.length > this.bufferSize) {
-            this.flush();
-        }
-
-        if (this.filePos >= this.memoryPos && this.filePos <= this.memoryPos + this.memory.size()) {
-            this.memory.seek((int) (this.filePos - this.memoryPos));
-            this.memory.write(buffer);
-        } else {
-            this.file.seek(this.filePos);
-            this.file.write(buffer);
-        }
-
-        this.filePos += buffer.length;
+        this.write(buffer, 0, buffer.length);
     }
 
     @Override
     public void write(int i) throws IOException {
-        throw new UnsupportedOperationException("Unimplemented method 'write'");
+        this.writeByte(i);
     }
 
     @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        throw new UnsupportedOperationException("Unimplemented method 'write'");
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        var pos = this.filePos;
+        while (len > 0) {
+            var pageNum = pos / this.pageSize;
+            var pagePos = (int) (pos % this.pageSize);
+            var size = Math.min(len, this.pageSize - pagePos);
+
+            var page = loadPage(pageNum);
+            System.arraycopy(b, off, page.data, pagePos, size);
+            page.size = Math.max(page.size, pagePos + size);
+            page.dirty = true;
+
+            pos += size;
+            off += size;
+            len -= size;
+        }
+
+        this.filePos = pos;
+        this.length = Math.max(this.length, pos);
+
+        evictPages();
+    }
+
+    // writes the lowest `size` bytes of the value in big endian order
+    private synchronized void writePrimitive(long value, int size) throws IOException {
+        for (int i = size - 1; i >= 0; i--) {
+            this.scratch[i] = (byte) value;
+            value >>>= 8;
+        }
+        this.write(this.scratch, 0, size);
     }
 
     @Override
@@ -115,16 +269,12 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
 
     @Override
     public void writeByte(int i) throws IOException {
-        var b = ByteBuffer.allocate(1);
-        b.put((byte) i);
-        this.write(b.array());
+        this.writePrimitive(i, 1);
     }
 
     @Override
     public void writeShort(int i) throws IOException {
-        var buffer = ByteBuffer.allocate(2);
-        buffer.putShort((short) (i & 0b1111_1111_1111_1111));
-        this.write(buffer.array());
+        this.writePrimitive(i, 2);
     }
 
     @Override
@@ -134,16 +284,12 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
 
     @Override
     public void writeInt(int i) throws IOException {
-        var buffer = ByteBuffer.allocate(4);
-        buffer.putInt(i);
-        this.write(buffer.array());
+        this.writePrimitive(i, 4);
     }
 
     @Override
     public void writeLong(long l) throws IOException {
-        var buffer = ByteBuffer.allocate(8);
-        buffer.putLong(l);
-        this.write(buffer.array());
+        this.writePrimitive(l, 8);
     }
 
     @Override
@@ -175,46 +321,13 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
 
     @Override
     public void readFully(byte[] buffer) throws IOException {
-        int pos = 0;
-
-        // read from the disk -- before the in-memory buffer
-        if (this.filePos < this.memoryPos) {
-            int sizeBeforeMem = Math.min((int) (this.memoryPos - this.filePos), buffer.length);
-            this.file.seek(this.filePos);
-            this.file.readFully(buffer, 0, sizeBeforeMem);
-            pos += sizeBeforeMem;
-            this.filePos += sizeBeforeMem;
-        }
-
-        if (pos == buffer.length) return;
-
-        // read from the in-memory buffer
-        if (this.filePos >= this.memoryPos && this.filePos < this.memoryPos + this.memory.size()) {
-            int memPos = (int) (this.filePos - this.memoryPos);
-            int sizeInMem = Math.min(this.memory.size() - memPos, buffer.length - pos);
-            this.memory.seek(memPos);
-            this.memory.readFully(buffer, pos, sizeInMem);
-            pos += sizeInMem;
-            this.filePos += sizeInMem;
-        }
-
-        if (pos == buffer.length) return;
-
-        // read from the disk -- after the in-memory buffer
-        if (this.filePos >= this.memoryPos + this.memory.size()) {
-            int sizeAfterMem = (int) (buffer.length - pos);
-            this.file.seek(this.filePos);
-            this.file.readFully(buffer, pos, sizeAfterMem);
-            pos += sizeAfterMem;
-            this.filePos += sizeAfterMem;
-        }
+        this.readFully(buffer, 0, buffer.length);
     }
 
     @Override
     public void readFully(byte[] b, int off, int len) throws IOException {
-        var buffer = new byte[len];
-        this.readFully(buffer);
-        System.arraycopy(buffer, 0, b, off, len);
+        this.read(this.filePos, b, off, len);
+        this.filePos += len;
     }
 
     @Override
@@ -227,11 +340,35 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
         throw new UnsupportedOperationException("Unimplemented method 'readBoolean'");
     }
 
+    // reads a big endian value of the given size. if it's in a
+    // page that is in memory, it is decoded without allocating.
+    private long readPrimitive(int size) throws IOException {
+        var pageNum = this.filePos / this.pageSize;
+        var pagePos = (int) (this.filePos % this.pageSize);
+        synchronized (this) {
+            var page = this.pages.get(pageNum);
+            if (page != null && pagePos + size <= page.size) {
+                long value = 0;
+                for (int i = 0; i < size; i++) {
+                    value = (value << 8) | (page.data[pagePos + i] & 0xFF);
+                }
+                page.lastUsed = ++this.useCount;
+                this.filePos += size;
+                return value;
+            }
+        }
+        var b = new byte[size];
+        this.readFully(b);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (b[i] & 0xFF);
+        }
+        return value;
+    }
+
     @Override
     public byte readByte() throws IOException {
-        var b = new byte[1];
-        this.readFully(b);
-        return b[0];
+        return (byte) this.readPrimitive(1);
     }
 
     @Override
@@ -241,9 +378,7 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
 
     @Override
     public short readShort() throws IOException {
-        var b = new byte[2];
-        this.readFully(b);
-        return ByteBuffer.wrap(b).getShort();
+        return (short) this.readPrimitive(2);
     }
 
     @Override
@@ -258,16 +393,12 @@ public class RandomAccessBufferedFile implements DataOutput, DataInput, AutoClos
 
     @Override
     public int readInt() throws IOException {
-        var b = new byte[4];
-        this.readFully(b);
-        return ByteBuffer.wrap(b).getInt();
+        return (int) this.readPrimitive(4);
     }
 
     @Override
     public long readLong() throws IOException {
-        var b = new byte[8];
-        this.readFully(b);
-        return ByteBuffer.wrap(b).getLong();
+        return this.readPrimitive(8);
     }
 
     @Override
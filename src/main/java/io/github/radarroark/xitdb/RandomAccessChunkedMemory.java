@@ -0,0 +1,302 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// an in-memory store made of fixed-size, off-heap chunks. unlike
+// RandomAccessMemory, growing it never copies the existing data,
+// and positions are longs so it can hold more than 2 GB.
+public class RandomAccessChunkedMemory implements DataOutput, DataInput, AutoCloseable {
+    int chunkSize;
+    volatile ByteBuffer[] chunks;
+    volatile long length;
+    ThreadLocal<Long> position;
+
+    public RandomAccessChunkedMemory() {
+        this(1024 * 1024);
+    }
+
+    public RandomAccessChunkedMemory(int chunkSize) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunkSize = chunkSize;
+        this.chunks = new ByteBuffer[0];
+        this.length = 0;
+        this.position = new ThreadLocal<>() {
+            @Override
+            protected Long initialValue() {
+                return 0L;
+            }
+        };
+    }
+
+    public long length() {
+        return this.length;
+    }
+
+    public long position() {
+        return this.position.get();
+    }
+
+    public void seek(long pos) {
+        this.position.set(Math.min(pos, this.length));
+    }
+
+    public void readAt(long pos, byte[] b) throws IOException {
+        this.readAt(pos, b, 0, b.length);
+    }
+
+    public void readAt(long pos, byte[] b, int off, int len) throws IOException {
+        // read the length before the chunks, because the chunks
+        // array is always replaced before the length grows
+        if (pos < 0 || pos + len > this.length) throw new EOFException();
+        var chunks = this.chunks;
+        while (len > 0) {
+            var chunk = chunks[(int) (pos / this.chunkSize)];
+            // the length was shrunk by setLength after it was checked
+            if (chunk == null) throw new EOFException();
+            var chunkPos = (int) (pos % this.chunkSize);
+            var size = Math.min(len, this.chunkSize - chunkPos);
+            chunk.get(chunkPos, b, off, size);
+            pos += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    public synchronized void writeAll(byte[]... buffers) throws IOException {
+        for (var buffer : buffers) {
+            this.write(buffer, 0, buffer.length);
+        }
+    }
+
+    public synchronized void setLength(long len) throws IOException {
+        if (len > this.length) throw new IllegalArgumentException();
+
+        // release the chunks that are entirely past the new length.
+        // readers don't take the lock, so a new chunks array is published
+        // instead of changing the one they may be reading from, and the
+        // length shrinks first so they don't look past it.
+        var chunkCount = (int) ((len + this.chunkSize - 1) / this.chunkSize);
+        var current = this.chunks;
+        var next = new ByteBuffer[current.length];
+        System.arraycopy(current, 0, next, 0, Math.min(chunkCount, current.length));
+
+        this.length = len;
+        this.chunks = next;
+        if (this.position.get() > len) {
+            this.position.set(len);
+        }
+    }
+
+    // makes sure there are enough chunks to hold the given number of bytes
+    private void ensureCapacity(long capacity) {
+        var chunkCount = (int) ((capacity + this.chunkSize - 1) / this.chunkSize);
+        var current = this.chunks;
+        if (chunkCount <= current.length && (chunkCount == 0 || current[chunkCount - 1] != null)) return;
+
+        // the chunks array only holds references, so growing it is cheap
+        var next = current;
+        if (chunkCount > current.length) {
+            next = new ByteBuffer[Math.max(chunkCount, current.length * 2)];
+            System.arraycopy(current, 0, next, 0, current.length);
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            if (next[i] == null) {
+                next[i] = ByteBuffer.allocateDirect(this.chunkSize);
+            }
+        }
+        this.chunks = next;
+    }
+
+    // AutoCloseable
+
+    @Override
+    public synchronized void close() throws Exception {
+        this.chunks = new ByteBuffer[0];
+        this.length = 0;
+    }
+
+    // DataOutput
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        this.write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.writeByte(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        long pos = this.position.get();
+        this.ensureCapacity(pos + len);
+        var chunks = this.chunks;
+        var end = pos + len;
+        while (len > 0) {
+            var chunk = chunks[(int) (pos / this.chunkSize)];
+            var chunkPos = (int) (pos % this.chunkSize);
+            var size = Math.min(len, this.chunkSize - chunkPos);
+            chunk.put(chunkPos, b, off, size);
+            pos += size;
+            off += size;
+            len -= size;
+        }
+        if (end > this.length) {
+            this.length = end;
+        }
+        this.position.set(end);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBoolean'");
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        write(new byte[]{(byte) (v & 0b1111_1111)});
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        var buffer = ByteBuffer.allocate(2);
+        buffer.putShort((short) (v & 0b1111_1111_1111_1111));
+        write(buffer.array());
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChar'");
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        var buffer = ByteBuffer.allocate(4);
+        buffer.putInt(v);
+        write(buffer.array());
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        var buffer = ByteBuffer.allocate(8);
+        buffer.putLong(v);
+        write(buffer.array());
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeFloat'");
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeDouble'");
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChars'");
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeUTF'");
+    }
+
+    // DataInput
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        this.readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        long pos = this.position.get();
+        this.readAt(pos, b, off, len);
+        this.position.set(pos + len);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'skipBytes'");
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readBoolean'");
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        var bytes = new byte[1];
+        this.readFully(bytes);
+        return bytes[0];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedByte'");
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        var bytes = new byte[2];
+        this.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedShort'");
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readChar'");
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        var bytes = new byte[4];
+        this.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        var bytes = new byte[8];
+        this.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readFloat'");
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readDouble'");
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readLine'");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUTF'");
+    }
+}
@@ -0,0 +1,462 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+// a file opened with O_DIRECT, so reads and writes bypass the OS page cache.
+// direct i/o must use offsets, sizes, and memory that are aligned to the
+// file system's block size, so every access is widened to the aligned
+// blocks around it. small reads (such as a single slot) therefore read a
+// whole block, which is why this is meant to be wrapped in a CoreCached.
+//
+// the last block of the file is usually partial, and almost every write
+// appends to it. so that appending doesn't read that block back and cut
+// the file back to its length each time, it is kept in memory, and only
+// written (padded to a whole block) when it is full, when a write moves
+// past it, or when the file is flushed.
+public class RandomAccessDirectFile implements DataOutput, DataInput, AutoCloseable {
+    FileChannel channel;
+    int alignment;
+    long filePos;
+    volatile long length; // the logical length
+    ThreadLocal<ByteBuffer> readBuffer;
+    ByteBuffer writeBuffer;
+    // the block that the end of the file is in. every block before it is
+    // on disk, while its bytes up to the length are in the tail buffer.
+    volatile long tailStart;
+    ByteBuffer tail;
+    boolean isTailDirty;
+
+    public RandomAccessDirectFile(File file, String mode) throws IOException {
+        OpenOption[] options = switch (mode) {
+            case "r" -> new OpenOption[]{StandardOpenOption.READ, ExtendedOpenOption.DIRECT};
+            case "rw" -> new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, ExtendedOpenOption.DIRECT};
+            default -> throw new IllegalArgumentException("Mode must be \"r\" or \"rw\"");
+        };
+        this.channel = FileChannel.open(file.toPath(), options);
+        this.alignment = (int) Files.getFileStore(file.toPath()).getBlockSize();
+        this.filePos = 0;
+        this.length = this.channel.size();
+        this.readBuffer = new ThreadLocal<>();
+        this.writeBuffer = null;
+        this.tail = allocateAligned(this.alignment);
+        loadTail();
+    }
+
+    public int alignment() {
+        return this.alignment;
+    }
+
+    public void seek(long pos) throws IOException {
+        this.filePos = pos;
+    }
+
+    public long length() throws IOException {
+        return this.length;
+    }
+
+    public long position() throws IOException {
+        return this.filePos;
+    }
+
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.read(pos, buffer, 0, buffer.length);
+    }
+
+    private void read(long pos, byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        // blocks before the tail are on disk, so they can be read without the lock
+        if (pos + len > this.tailStart) {
+            readWithTail(pos, b, off, len);
+            return;
+        }
+        if (pos < 0) throw new EOFException();
+        readDisk(pos, b, off, len);
+    }
+
+    private synchronized void readWithTail(long pos, byte[] b, int off, int len) throws IOException {
+        if (pos < 0 || pos + len > this.length) throw new EOFException();
+        var diskSize = (int) Math.max(0, Math.min(len, this.tailStart - pos));
+        if (diskSize > 0) {
+            readDisk(pos, b, off, diskSize);
+        }
+        if (diskSize < len) {
+            this.tail.get((int) (pos + diskSize - this.tailStart), b, off + diskSize, len - diskSize);
+        }
+    }
+
+    private void readDisk(long pos, byte[] b, int off, int len) throws IOException {
+        var alignedStart = alignDown(pos);
+        var alignedEnd = alignUp(pos + len);
+        var buffer = this.readBuffer.get();
+        if (buffer == null || buffer.capacity() < alignedEnd - alignedStart) {
+            buffer = allocateAligned((int) (alignedEnd - alignedStart));
+            this.readBuffer.set(buffer);
+        }
+
+        readBlocks(alignedStart, alignedEnd, pos + len, buffer);
+        buffer.get((int) (pos - alignedStart), b, off, len);
+    }
+
+    // reads the aligned range into the buffer. the last block may be
+    // partial, so reading stops once `needed` bytes are available.
+    private void readBlocks(long alignedStart, long alignedEnd, long needed, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit((int) (alignedEnd - alignedStart));
+        while (alignedStart + buffer.position() < needed) {
+            var size = this.channel.read(buffer, alignedStart + buffer.position());
+            if (size < 0) throw new EOFException();
+        }
+    }
+
+    // fills the block at the given offset in the buffer with its existing
+    // data. anything past the end of the file is filled with zeroes.
+    private void fillBlock(long blockStart, ByteBuffer buffer, int offset) throws IOException {
+        if (blockStart >= this.tailStart) {
+            if (blockStart == this.tailStart) {
+                buffer.put(offset, this.tail, 0, this.alignment);
+            } else {
+                for (int i = offset; i < offset + this.alignment; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            return;
+        }
+        var existing = (int) Math.max(0, Math.min(this.alignment, this.length - blockStart));
+        if (existing > 0) {
+            var block = buffer.duplicate();
+            block.clear();
+            block.position(offset);
+            block.limit(offset + this.alignment);
+            while (block.position() - offset < existing) {
+                var size = this.channel.read(block, blockStart + block.position() - offset);
+                if (size < 0) throw new EOFException();
+            }
+        }
+        for (int i = offset + existing; i < offset + this.alignment; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    public void writeAll(byte[]... buffers) throws IOException {
+        var len = 0;
+        for (var buffer : buffers) {
+            len += buffer.length;
+        }
+        var combined = new byte[len];
+        var off = 0;
+        for (var buffer : buffers) {
+            System.arraycopy(buffer, 0, combined, off, buffer.length);
+            off += buffer.length;
+        }
+        this.write(combined, 0, combined.length);
+    }
+
+    public synchronized void setLength(long len) throws IOException {
+        if (len < this.length) {
+            if (len >= this.tailStart) {
+                // only the tail is cut
+                for (int i = (int) (len - this.tailStart); i < this.alignment; i++) {
+                    this.tail.put(i, (byte) 0);
+                }
+                this.isTailDirty = true;
+                this.length = len;
+                if (this.channel.size() > len) {
+                    this.channel.truncate(len);
+                }
+            } else {
+                this.channel.truncate(len);
+                this.length = len;
+                loadTail();
+            }
+        } else if (len > this.length) {
+            // extend the file with zeroes
+            this.seek(this.length);
+            this.write(new byte[(int) (len - this.length)]);
+        }
+        this.filePos = Math.min(this.filePos, len);
+    }
+
+    // writes the tail, and cuts the padding after it
+    public synchronized void flush() throws IOException {
+        if (!this.isTailDirty) return;
+        var buffer = this.tail.duplicate();
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, this.tailStart + buffer.position());
+        }
+        if (this.channel.size() > this.length) {
+            this.channel.truncate(this.length);
+        }
+        this.isTailDirty = false;
+    }
+
+    public void sync() throws IOException {
+        flush();
+        // O_DIRECT skips the page cache, but the disk's own cache
+        // and the file's metadata still need to be synced
+        this.channel.force(true);
+    }
+
+    // reads the block that the end of the file is in into the tail
+    private void loadTail() throws IOException {
+        var tailStart = alignDown(this.length);
+        for (int i = 0; i < this.alignment; i++) {
+            this.tail.put(i, (byte) 0);
+        }
+        if (this.length > tailStart) {
+            readBlocks(tailStart, tailStart + this.alignment, this.length, this.tail);
+        }
+        this.tailStart = tailStart;
+        this.isTailDirty = false;
+    }
+
+    private long alignDown(long pos) {
+        return pos - (pos % this.alignment);
+    }
+
+    private long alignUp(long pos) {
+        return alignDown(pos + this.alignment - 1);
+    }
+
+    private ByteBuffer allocateAligned(int size) {
+        return ByteBuffer.allocateDirect(size + this.alignment).alignedSlice(this.alignment);
+    }
+
+    // AutoCloseable
+
+    @Override
+    public void close() throws Exception {
+        if (this.channel.isOpen()) {
+            flush();
+        }
+        this.channel.close();
+    }
+
+    // DataOutput
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        this.write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(int i) throws IOException {
+        this.writeByte(i);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        var pos = this.filePos;
+        var end = pos + len;
+        var alignedStart = alignDown(pos);
+        var alignedEnd = alignUp(end);
+        var size = (int) (alignedEnd - alignedStart);
+        if (this.writeBuffer == null || this.writeBuffer.capacity() < size) {
+            this.writeBuffer = allocateAligned(size);
+        }
+        var buffer = this.writeBuffer;
+        buffer.clear();
+
+        // get the existing data in the first and last blocks, so the
+        // parts of them that we aren't writing to are preserved
+        var lastBlockStart = alignedEnd - this.alignment;
+        fillBlock(alignedStart, buffer, 0);
+        if (lastBlockStart != alignedStart) {
+            fillBlock(lastBlockStart, buffer, (int) (lastBlockStart - alignedStart));
+        }
+        buffer.put((int) (pos - alignedStart), b, off, len);
+
+        var newLength = Math.max(this.length, end);
+        var newTailStart = alignDown(newLength);
+
+        // if the end of the file moves past the tail without this write
+        // covering it, the old tail is now a whole block
+        if (this.isTailDirty && newTailStart > this.tailStart && (this.tailStart < alignedStart || this.tailStart >= alignedEnd)) {
+            var tail = this.tail.duplicate();
+            tail.clear();
+            while (tail.hasRemaining()) {
+                this.channel.write(tail, this.tailStart + tail.position());
+            }
+        }
+
+        // write the whole blocks, and keep the one the file now ends in
+        buffer.limit((int) (Math.min(alignedEnd, newTailStart) - alignedStart));
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, alignedStart + buffer.position());
+        }
+        if (newTailStart >= alignedStart && newTailStart < alignedEnd) {
+            buffer.limit(size);
+            this.tail.put(0, buffer, (int) (newTailStart - alignedStart), this.alignment);
+            this.isTailDirty = true;
+        } else if (newTailStart > this.tailStart) {
+            for (int i = 0; i < this.alignment; i++) {
+                this.tail.put(i, (byte) 0);
+            }
+            this.isTailDirty = false;
+        }
+
+        this.length = newLength;
+        this.tailStart = newTailStart;
+        this.filePos = end;
+    }
+
+    @Override
+    public void writeBoolean(boolean b) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBoolean'");
+    }
+
+    @Override
+    public void writeByte(int i) throws IOException {
+        this.write(new byte[]{(byte) (i & 0b1111_1111)});
+    }
+
+    @Override
+    public void writeShort(int i) throws IOException {
+        var buffer = ByteBuffer.allocate(2);
+        buffer.putShort((short) (i & 0b1111_1111_1111_1111));
+        this.write(buffer.array());
+    }
+
+    @Override
+    public void writeChar(int i) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChar'");
+    }
+
+    @Override
+    public void writeInt(int i) throws IOException {
+        var buffer = ByteBuffer.allocate(4);
+        buffer.putInt(i);
+        this.write(buffer.array());
+    }
+
+    @Override
+    public void writeLong(long l) throws IOException {
+        var buffer = ByteBuffer.allocate(8);
+        buffer.putLong(l);
+        this.write(buffer.array());
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeFloat'");
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeDouble'");
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChars'");
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeUTF'");
+    }
+
+    // DataInput
+
+    @Override
+    public void readFully(byte[] buffer) throws IOException {
+        this.readFully(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        this.read(this.filePos, b, off, len);
+        this.filePos += len;
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'skipBytes'");
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readBoolean'");
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        var bytes = new byte[1];
+        this.readFully(bytes);
+        return bytes[0];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedByte'");
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        var bytes = new byte[2];
+        this.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedShort'");
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readChar'");
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        var bytes = new byte[4];
+        this.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        var bytes = new byte[8];
+        this.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readFloat'");
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readDouble'");
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readLine'");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUTF'");
+    }
+}
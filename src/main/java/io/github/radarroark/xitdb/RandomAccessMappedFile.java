@@ -0,0 +1,353 @@
+package io.github.radarroark.xitdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class RandomAccessMappedFile implements DataOutput, DataInput, AutoCloseable {
+    RandomAccessFile file;
+    FileChannel channel;
+    int segmentSize; // the max size of each mapped region
+    long filePos;
+    ByteBuffer scratch;
+    volatile Segments segments;
+
+    // the mapped regions of the file. the last segment may be
+    // smaller than segmentSize, in which case it is re-mapped
+    // when a read goes past its end.
+    record Segments(MappedByteBuffer[] buffers, long length) {}
+
+    public RandomAccessMappedFile(File file, String mode) throws FileNotFoundException {
+        this(file, mode, 1 << 30);
+    }
+
+    public RandomAccessMappedFile(File file, String mode, int segmentSize) throws FileNotFoundException {
+        if (segmentSize <= 0) throw new IllegalArgumentException("Segment size must be positive");
+        this.file = new RandomAccessFile(file, mode);
+        this.channel = this.file.getChannel();
+        this.segmentSize = segmentSize;
+        this.filePos = 0;
+        this.scratch = ByteBuffer.allocate(8);
+        this.segments = new Segments(new MappedByteBuffer[0], 0);
+    }
+
+    public void seek(long pos) throws IOException {
+        this.filePos = pos;
+    }
+
+    public long length() throws IOException {
+        return this.channel.size();
+    }
+
+    public long position() throws IOException {
+        return this.filePos;
+    }
+
+    public void readAt(long pos, byte[] buffer) throws IOException {
+        this.read(pos, buffer, 0, buffer.length);
+    }
+
+    public void writeAll(byte[]... buffers) throws IOException {
+        var byteBuffers = new ByteBuffer[buffers.length];
+        long remaining = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            byteBuffers[i] = ByteBuffer.wrap(buffers[i]);
+            remaining += buffers[i].length;
+        }
+        this.channel.position(this.filePos);
+        while (remaining > 0) {
+            var size = this.channel.write(byteBuffers);
+            this.filePos += size;
+            remaining -= size;
+        }
+    }
+
+    public synchronized void setLength(long len) throws IOException {
+        if (len < this.channel.size()) {
+            this.channel.truncate(len);
+        } else {
+            this.file.setLength(len);
+        }
+
+        // drop any segments that extend past the new length
+        var current = this.segments;
+        if (len < current.length()) {
+            var fullCount = (int) Math.min(current.buffers().length, len / this.segmentSize);
+            var buffers = new MappedByteBuffer[fullCount];
+            System.arraycopy(current.buffers(), 0, buffers, 0, fullCount);
+            this.segments = new Segments(buffers, (long) fullCount * this.segmentSize);
+        }
+    }
+
+    public void flush() throws IOException {
+        // writes go directly to the channel, so there is nothing to flush
+    }
+
+    public void sync() throws IOException {
+        this.file.getFD().sync();
+    }
+
+    // returns segments that cover the file up to (but not including) the given end position
+    private Segments segmentsFor(long end) throws IOException {
+        var current = this.segments;
+        if (end <= current.length()) return current;
+        return remap(end);
+    }
+
+    private synchronized Segments remap(long end) throws IOException {
+        var current = this.segments;
+        if (end <= current.length()) return current;
+
+        var size = this.channel.size();
+        if (end > size) throw new EOFException();
+
+        var count = (int) ((size + this.segmentSize - 1) / this.segmentSize);
+        var buffers = new MappedByteBuffer[count];
+
+        // segments that were mapped in full can be reused,
+        // because the file is append-only
+        var reusable = (int) Math.min(current.buffers().length, current.length() / this.segmentSize);
+        System.arraycopy(current.buffers(), 0, buffers, 0, reusable);
+
+        for (int i = reusable; i < count; i++) {
+            var start = (long) i * this.segmentSize;
+            var segmentLength = Math.min(this.segmentSize, size - start);
+            buffers[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start, segmentLength);
+        }
+
+        var next = new Segments(buffers, size);
+        this.segments = next;
+        return next;
+    }
+
+    private void read(long pos, byte[] b, int off, int len) throws IOException {
+        var segs = this.segmentsFor(pos + len);
+        while (len > 0) {
+            var segment = segs.buffers()[(int) (pos / this.segmentSize)];
+            var segmentPos = (int) (pos % this.segmentSize);
+            var size = Math.min(len, segment.limit() - segmentPos);
+            segment.get(segmentPos, b, off, size);
+            off += size;
+            len -= size;
+            pos += size;
+        }
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.filePos += this.channel.write(buffer, this.filePos);
+        }
+    }
+
+    // AutoCloseable
+
+    @Override
+    public void close() throws Exception {
+        this.segments = new Segments(new MappedByteBuffer[0], 0);
+        this.channel.close();
+        this.file.close();
+    }
+
+    // DataOutput
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        this.writeBuffer(ByteBuffer.wrap(buffer));
+    }
+
+    @Override
+    public void write(int i) throws IOException {
+        this.writeByte(i);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.writeBuffer(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void writeBoolean(boolean b) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBoolean'");
+    }
+
+    @Override
+    public void writeByte(int i) throws IOException {
+        this.scratch.clear();
+        this.scratch.put((byte) i);
+        this.scratch.flip();
+        this.writeBuffer(this.scratch);
+    }
+
+    @Override
+    public void writeShort(int i) throws IOException {
+        this.scratch.clear();
+        this.scratch.putShort((short) (i & 0b1111_1111_1111_1111));
+        this.scratch.flip();
+        this.writeBuffer(this.scratch);
+    }
+
+    @Override
+    public void writeChar(int i) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChar'");
+    }
+
+    @Override
+    public void writeInt(int i) throws IOException {
+        this.scratch.clear();
+        this.scratch.putInt(i);
+        this.scratch.flip();
+        this.writeBuffer(this.scratch);
+    }
+
+    @Override
+    public void writeLong(long l) throws IOException {
+        this.scratch.clear();
+        this.scratch.putLong(l);
+        this.scratch.flip();
+        this.writeBuffer(this.scratch);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeFloat'");
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeDouble'");
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeBytes'");
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeChars'");
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'writeUTF'");
+    }
+
+    // DataInput
+
+    @Override
+    public void readFully(byte[] buffer) throws IOException {
+        this.readFully(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        this.read(this.filePos, b, off, len);
+        this.filePos += len;
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'skipBytes'");
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readBoolean'");
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        var segs = this.segmentsFor(this.filePos + 1);
+        var segment = segs.buffers()[(int) (this.filePos / this.segmentSize)];
+        var b = segment.get((int) (this.filePos % this.segmentSize));
+        this.filePos += 1;
+        return b;
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedByte'");
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        var segs = this.segmentsFor(this.filePos + 2);
+        var segment = segs.buffers()[(int) (this.filePos / this.segmentSize)];
+        var segmentPos = (int) (this.filePos % this.segmentSize);
+        // fast path when the value doesn't cross a segment boundary
+        if (segmentPos + 2 <= segment.limit()) {
+            this.filePos += 2;
+            return segment.getShort(segmentPos);
+        }
+        var b = new byte[2];
+        this.readFully(b);
+        return ByteBuffer.wrap(b).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUnsignedShort'");
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readChar'");
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        var segs = this.segmentsFor(this.filePos + 4);
+        var segment = segs.buffers()[(int) (this.filePos / this.segmentSize)];
+        var segmentPos = (int) (this.filePos % this.segmentSize);
+        // fast path when the value doesn't cross a segment boundary
+        if (segmentPos + 4 <= segment.limit()) {
+            this.filePos += 4;
+            return segment.getInt(segmentPos);
+        }
+        var b = new byte[4];
+        this.readFully(b);
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        var segs = this.segmentsFor(this.filePos + 8);
+        var segment = segs.buffers()[(int) (this.filePos / this.segmentSize)];
+        var segmentPos = (int) (this.filePos % this.segmentSize);
+        // fast path when the value doesn't cross a segment boundary
+        if (segmentPos + 8 <= segment.limit()) {
+            this.filePos += 8;
+            return segment.getLong(segmentPos);
+        }
+        var b = new byte[8];
+        this.readFully(b);
+        return ByteBuffer.wrap(b).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readFloat'");
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readDouble'");
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readLine'");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        throw new UnsupportedOperationException("Unimplemented method 'readUTF'");
+    }
+}
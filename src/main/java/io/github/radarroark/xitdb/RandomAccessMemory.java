@@ -3,6 +3,7 @@ package io.github.radarroark.xitdb;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -27,6 +28,21 @@ public class RandomAccessMemory extends ByteArrayOutputStream implements DataOut
         }
     }
 
+    public void readAt(long pos, byte[] b) throws IOException {
+        this.readAt(pos, b, 0, b.length);
+    }
+
+    public void readAt(long pos, byte[] b, int off, int len) throws IOException {
+        if (pos < 0 || pos + len > this.count) throw new EOFException();
+        System.arraycopy(this.buf, (int) pos, b, off, len);
+    }
+
+    public void writeAll(byte[]... buffers) throws IOException {
+        for (var buffer : buffers) {
+            this.write(buffer);
+        }
+    }
+
     public void setLength(int len) throws IOException {
         if (len == 0) {
             reset();
@@ -28,6 +28,12 @@ public class ReadArrayList implements Slotted, Iterable<ReadCursor> {
         return this.cursor.iterator();
     }
 
+    // reads up to `prefetchCount` sibling index blocks at a time,
+    // which makes a full scan of a large list mostly sequential i/o
+    public ReadCursor.Iterator iterator(int prefetchCount) {
+        return this.cursor.iterator(prefetchCount);
+    }
+
     public ReadCursor getCursor(long index) throws Exception {
         return this.cursor.readPath(new Database.PathPart[]{
             new Database.ArrayListGet(index)
@@ -2,12 +2,15 @@ package io.github.radarroark.xitdb;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Stack;
 
 public class ReadCursor implements Slotted, Iterable<ReadCursor> {
     public SlotPointer slotPtr;
     public Database db;
+    Database.ReadWindow window; // bytes read along with the slot, which may include its data
 
     public ReadCursor(SlotPointer slotPtr, Database db) {
         this.slotPtr = slotPtr;
@@ -20,9 +23,13 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
     }
 
     public ReadCursor readPath(Database.PathPart[] path) throws Exception {
+        // clear any window left over from a lookup that didn't finish
+        this.db.takeReadWindow();
         try {
             var slotPtr = this.db.readSlotPointer(Database.WriteMode.READ_ONLY, path, 0, this.slotPtr);
-            return new ReadCursor(slotPtr, this.db);
+            var cursor = new ReadCursor(slotPtr, this.db);
+            cursor.window = this.db.takeReadWindow();
+            return cursor;
         } catch (Database.KeyNotFoundException e) {
             return null;
         }
@@ -71,32 +78,31 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
     }
 
     public Database.Bytes readBytesObject(Long maxSizeMaybe) throws IOException {
-        var reader = this.db.core.reader();
-
         switch (this.slotPtr.slot().tag()) {
             case NONE -> {
                 return new Database.Bytes(new byte[0]);
             }
             case BYTES -> {
-                this.db.core.seek(this.slotPtr.slot().value());
-                var valueSize = reader.readLong();
+                var sizeBytes = new byte[8];
+                this.readBytesAt(this.slotPtr.slot().value(), sizeBytes);
+                var valueSize = Slot.getLong(sizeBytes, 0);
 
                 if (maxSizeMaybe != null && valueSize > maxSizeMaybe) {
                     throw new Database.StreamTooLongException();
                 }
 
-                var startPosition = this.db.core.position();
+                var startPosition = this.slotPtr.slot().value() + 8;
 
-                var value = new byte[(int)valueSize];
-                reader.readFully(value);
+                // the format tag comes right after the value, so read them together
+                var formatTagSize = this.slotPtr.slot().full() ? 2 : 0;
+                var bytes = new byte[(int)valueSize + formatTagSize];
+                this.readBytesAt(startPosition, bytes);
 
-                byte[] formatTag = null;
-                if (this.slotPtr.slot().full()) {
-                    this.db.core.seek(startPosition + valueSize);
-                    formatTag = new byte[2];
-                    reader.readFully(formatTag);
+                if (formatTagSize == 0) {
+                    return new Database.Bytes(bytes, null);
                 }
-
+                var value = Arrays.copyOfRange(bytes, 0, (int)valueSize);
+                var formatTag = Arrays.copyOfRange(bytes, (int)valueSize, bytes.length);
                 return new Database.Bytes(value, formatTag);
             }
             case SHORT_BYTES -> {
@@ -140,36 +146,30 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
     }
 
     public KeyValuePairCursor readKeyValuePair() throws IOException {
-        var reader = this.db.core.reader();
-
         if (this.slotPtr.slot().tag() != Tag.KV_PAIR) {
             throw new Database.UnexpectedTagException();
         }
 
-        this.db.core.seek(this.slotPtr.slot().value());
         var kvPairBytes = new byte[Database.KeyValuePair.length(this.db.header.hashSize())];
-        reader.readFully(kvPairBytes);
+        this.db.core.readAt(this.slotPtr.slot().value(), kvPairBytes);
         var kvPair = Database.KeyValuePair.fromBytes(kvPairBytes, this.db.header.hashSize());
 
         var hashPos = this.slotPtr.slot().value();
         var keySlotPos = hashPos + this.db.header.hashSize();
         var valueSlotPos = keySlotPos + Slot.length;
 
-        return new KeyValuePairCursor(
-            new ReadCursor(new SlotPointer(valueSlotPos, kvPair.valueSlot()), this.db),
-            new ReadCursor(new SlotPointer(keySlotPos, kvPair.keySlot()), this.db),
-            kvPair.hash()
-        );
+        var valueCursor = new ReadCursor(new SlotPointer(valueSlotPos, kvPair.valueSlot()), this.db);
+        var keyCursor = new ReadCursor(new SlotPointer(keySlotPos, kvPair.keySlot()), this.db);
+        valueCursor.window = this.window;
+        keyCursor.window = this.window;
+        return new KeyValuePairCursor(valueCursor, keyCursor, kvPair.hash());
     }
 
     public Reader reader() throws IOException {
-        var reader = this.db.core.reader();
-
         switch (this.slotPtr.slot().tag()) {
             case BYTES -> {
-                this.db.core.seek(this.slotPtr.slot().value());
-                var size = reader.readLong();
-                var startPosition = this.db.core.position();
+                var size = this.readLongAt(this.slotPtr.slot().value());
+                var startPosition = this.slotPtr.slot().value() + 8;
                 return new Reader(this, size, startPosition, 0);
             }
             case SHORT_BYTES -> {
@@ -194,28 +194,24 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
     }
 
     public long count() throws IOException {
-        var reader = this.db.core.reader();
         switch (this.slotPtr.slot().tag()) {
             case NONE -> {
                 return 0;
             }
             case ARRAY_LIST -> {
-                this.db.core.seek(this.slotPtr.slot().value());
                 var headerBytes = new byte[Database.ArrayListHeader.length];
-                reader.readFully(headerBytes);
+                this.db.core.readAt(this.slotPtr.slot().value(), headerBytes);
                 var header = Database.ArrayListHeader.fromBytes(headerBytes);
                 return header.size();
             }
             case LINKED_ARRAY_LIST -> {
-                this.db.core.seek(this.slotPtr.slot().value());
                 var headerBytes = new byte[Database.LinkedArrayListHeader.length];
-                reader.readFully(headerBytes);
+                this.db.core.readAt(this.slotPtr.slot().value(), headerBytes);
                 var header = Database.LinkedArrayListHeader.fromBytes(headerBytes);
                 return header.size();
             }
             case BYTES -> {
-                this.db.core.seek(this.slotPtr.slot().value());
-                return reader.readLong();
+                return this.readLongAt(this.slotPtr.slot().value());
             }
             case SHORT_BYTES -> {
                 var buffer = ByteBuffer.allocate(8);
@@ -232,13 +228,28 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                 return size;
             }
             case COUNTED_HASH_MAP, COUNTED_HASH_SET -> {
-                this.db.core.seek(this.slotPtr.slot().value());
-                return reader.readLong();
+                return this.db.readMapCount(this.slotPtr.slot().value());
             }
             default -> throw new Database.UnexpectedTagException();
         }
     }
 
+    // reads part of a byte array, from the window if it has it. byte arrays
+    // are never changed once written, so the window can't be out of date.
+    private void readBytesAt(long position, byte[] buffer) throws IOException {
+        if (this.window != null && this.window.contains(position, buffer.length)) {
+            this.window.read(position, buffer);
+        } else {
+            this.db.core.readAt(position, buffer);
+        }
+    }
+
+    private long readLongAt(long position) throws IOException {
+        var bytes = new byte[8];
+        this.db.core.readAt(position, bytes);
+        return Slot.getLong(bytes, 0);
+    }
+
     public static class Reader extends java.io.InputStream {
         ReadCursor parent;
         long size;
@@ -264,11 +275,15 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
         @Override
         public int read(byte[] buffer) throws IOException {
             if (this.size < this.relativePosition) throw new Database.EndOfStreamException();
-            this.parent.db.core.seek(this.startPosition + this.relativePosition);
             var readSize = Math.min(buffer.length, (int) (this.size - this.relativePosition));
             if (readSize == 0) return -1;
-            var reader = this.parent.db.core.reader();
-            reader.readFully(buffer, 0, readSize);
+            if (readSize == buffer.length) {
+                this.parent.db.core.readAt(this.startPosition + this.relativePosition, buffer);
+            } else {
+                var bytes = new byte[readSize];
+                this.parent.db.core.readAt(this.startPosition + this.relativePosition, bytes);
+                System.arraycopy(bytes, 0, buffer, 0, readSize);
+            }
             this.relativePosition += readSize;
             return readSize;
         }
@@ -288,9 +303,7 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
 
         public void readFully(byte[] buffer) throws IOException {
             if (this.size < this.relativePosition || this.size - this.relativePosition < buffer.length) throw new Database.EndOfStreamException();
-            this.parent.db.core.seek(this.startPosition + this.relativePosition);
-            var reader = this.parent.db.core.reader();
-            reader.readFully(buffer);
+            this.parent.db.core.readAt(this.startPosition + this.relativePosition, buffer);
             this.relativePosition += buffer.length;
         }
 
@@ -344,21 +357,35 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
         long index;
         private Stack<Level> stack;
         private ReadCursor nextCursorMaybe = null; // only used when iterating over hash maps
+        private int prefetchCount; // how many sibling index blocks to read ahead
+        private HashMap<Long, Slot[]> prefetched = new HashMap<>();
 
         public static class Level {
             long position;
             Slot[] block;
-            byte index;
+            int index;
+            boolean isCompact;
 
-            public Level(long position, Slot[] block, byte index) {
+            public Level(long position, Slot[] block, int index) {
+                this(position, block, index, false);
+            }
+
+            public Level(long position, Slot[] block, int index, boolean isCompact) {
                 this.position = position;
                 this.block = block;
                 this.index = index;
+                this.isCompact = isCompact;
             }
         }
 
         public Iterator(ReadCursor cursor) throws IOException {
+            this(cursor, 0);
+        }
+
+        public Iterator(ReadCursor cursor, int prefetchCount) throws IOException {
+            if (prefetchCount < 0) throw new IllegalArgumentException("Prefetch count must not be negative");
             this.cursor = cursor;
+            this.prefetchCount = prefetchCount;
             switch (cursor.slotPtr.slot().tag()) {
                 case NONE -> {
                     this.size = 0;
@@ -367,10 +394,8 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                 }
                 case ARRAY_LIST -> {
                     var position = cursor.slotPtr.slot().value();
-                    cursor.db.core.seek(position);
-                    var reader = cursor.db.core.reader();
                     var headerBytes = new byte[Database.ArrayListHeader.length];
-                    reader.readFully(headerBytes);
+                    cursor.db.core.readAt(position, headerBytes);
                     var header = Database.ArrayListHeader.fromBytes(headerBytes);
                     this.size = cursor.count();
                     this.index = 0;
@@ -378,10 +403,8 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                 }
                 case LINKED_ARRAY_LIST -> {
                     var position = cursor.slotPtr.slot().value();
-                    cursor.db.core.seek(position);
-                    var reader = cursor.db.core.reader();
                     var headerBytes = new byte[Database.LinkedArrayListHeader.length];
-                    reader.readFully(headerBytes);
+                    cursor.db.core.readAt(position, headerBytes);
                     var header = Database.LinkedArrayListHeader.fromBytes(headerBytes);
                     this.size = cursor.count();
                     this.index = 0;
@@ -390,12 +413,12 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                 case HASH_MAP, HASH_SET -> {
                     this.size = 0;
                     this.index = 0;
-                    this.stack = initStack(cursor, cursor.slotPtr.slot().value(), Database.INDEX_BLOCK_SIZE);
+                    this.stack = initStack(cursor, cursor.slotPtr.slot().value(), cursor.db.mapIndexBlockSize);
                 }
                 case COUNTED_HASH_MAP, COUNTED_HASH_SET -> {
                     this.size = 0;
                     this.index = 0;
-                    this.stack = initStack(cursor, cursor.slotPtr.slot().value() + 8, Database.INDEX_BLOCK_SIZE);
+                    this.stack = initStack(cursor, cursor.slotPtr.slot().value() + 8, cursor.db.mapIndexBlockSize);
                 }
                 default -> throw new Database.UnexpectedTagException();
             }
@@ -413,7 +436,7 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                     // field and then read from that field when next() is called.
                     if (this.nextCursorMaybe == null) {
                         try {
-                            this.nextCursorMaybe = nextInternal(Database.INDEX_BLOCK_SIZE);
+                            this.nextCursorMaybe = nextInternal(this.cursor.db.mapIndexBlockSize);
                         } catch (Exception e) {
                             throw new RuntimeException(e);
                         }
@@ -447,7 +470,7 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                             this.nextCursorMaybe = null;
                             return nextCursor;
                         } else {
-                            return nextInternal(Database.INDEX_BLOCK_SIZE);
+                            return nextInternal(this.cursor.db.mapIndexBlockSize);
                         }
                     }
                     default -> throw new Database.UnexpectedTagException();
@@ -458,28 +481,39 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
         }
 
         private static Stack<Level> initStack(ReadCursor cursor, long position, int blockSize) throws IOException {
-            // find the block
-            cursor.db.core.seek(position);
             // read the block
-            var reader = cursor.db.core.reader();
-            var indexBlockBytes = new byte[blockSize];
-            reader.readFully(indexBlockBytes);
-            // convert the block into slots
-            var indexBlock = new Slot[Database.SLOT_COUNT];
-            var buffer = ByteBuffer.wrap(indexBlockBytes);
-            for (int i = 0; i < indexBlock.length; i++) {
-                var slotBytes = new byte[Slot.length];
-                buffer.get(slotBytes);
-                indexBlock[i] = Slot.fromBytes(slotBytes);
-                // linked array list has larger slots so we need to skip over the rest
-                buffer.position(buffer.position() + ((blockSize / Database.SLOT_COUNT) - Slot.length));
-            }
+            var isTopLevel = cursor.slotPtr.slot().value() == Database.DATABASE_START;
+            var indexBlock = cursor.db.readSlotBlock(position, blockSize, isTopLevel);
             // init the stack
             var stack = new Stack<Level>();
-            stack.add(new Level(position, indexBlock, (byte)0));
+            stack.add(new Level(position, indexBlock, 0));
             return stack;
         }
 
+        private Slot[] readIndexBlock(Level level, long position, int blockSize, boolean isTopLevel) throws IOException {
+            if (this.prefetchCount == 0) {
+                return cursor.db.readSlotBlock(position, blockSize, isTopLevel);
+            }
+
+            var indexBlock = this.prefetched.remove(position);
+            if (indexBlock != null) return indexBlock;
+
+            // we're about to visit this block's siblings too, so read
+            // the next few of them along with it in a single batch
+            var positions = new ArrayList<Long>();
+            for (int i = level.index; i < level.block.length && positions.size() <= this.prefetchCount; i++) {
+                var slot = level.block[i];
+                if (slot.tag() == Tag.INDEX) {
+                    positions.add(slot.value());
+                }
+            }
+            var blocks = cursor.db.readSlotBlocks(positions, blockSize, isTopLevel);
+            for (int i = 1; i < positions.size(); i++) {
+                this.prefetched.put(positions.get(i), blocks[i]);
+            }
+            return blocks[0];
+        }
+
         private ReadCursor nextInternal(int blockSize) throws IOException {
             while (!this.stack.empty()) {
                 var level = this.stack.peek();
@@ -491,34 +525,27 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
                     continue;
                 } else {
                     var nextSlot = level.block[level.index];
-                    if (nextSlot.tag() == Tag.INDEX) {
-                        // find the block
-                        var nextPos = nextSlot.value();
-                        cursor.db.core.seek(nextPos);
+                    if (nextSlot.tag() == Tag.INDEX || nextSlot.tag() == Tag.COMPACT_INDEX) {
                         // read the block
-                        var reader = cursor.db.core.reader();
-                        var indexBlockBytes = new byte[blockSize];
-                        reader.readFully(indexBlockBytes);
-                        // convert the block into slots
-                        var indexBlock = new Slot[Database.SLOT_COUNT];
-                        var buffer = ByteBuffer.wrap(indexBlockBytes);
-                        for (int i = 0; i < indexBlock.length; i++) {
-                            var slotBytes = new byte[Slot.length];
-                            buffer.get(slotBytes);
-                            indexBlock[i] = Slot.fromBytes(slotBytes);
-                            // linked array list has larger slots so we need to skip over the rest
-                            buffer.position(buffer.position() + ((blockSize / Database.SLOT_COUNT) - Slot.length));
-                        }
+                        var nextPos = nextSlot.value();
+                        var isTopLevel = this.cursor.slotPtr.slot().value() == Database.DATABASE_START;
+                        var isCompact = nextSlot.tag() == Tag.COMPACT_INDEX;
+                        var indexBlock = isCompact ?
+                            cursor.db.readCompactSlotBlock(nextPos, isTopLevel) :
+                            readIndexBlock(level, nextPos, blockSize, isTopLevel);
                         // append to the stack
-                        stack.add(new Level(nextPos, indexBlock, (byte)0));
+                        stack.add(new Level(nextPos, indexBlock, 0, isCompact));
                         continue;
                     } else {
+                        var slotIndex = level.index;
                         this.stack.peek().index += 1;
                         // normally a slot that is .none should be skipped because it doesn't
                         // have a value, but if it's set to full, then it is actually a valid
                         // item that should be returned.
                         if (!nextSlot.empty()) {
-                            var position = level.position + (level.index * Slot.length);
+                            var position = level.isCompact ?
+                                this.cursor.db.compactSlotPosition(level.position, level.block, slotIndex) :
+                                level.position + (slotIndex * Slot.length);
                             return new ReadCursor(new SlotPointer(position, nextSlot), this.cursor.db);
                         } else {
                             continue;
@@ -538,4 +565,12 @@ public class ReadCursor implements Slotted, Iterable<ReadCursor> {
             throw new RuntimeException(e);
         }
     }
+
+    public Iterator iterator(int prefetchCount) {
+        try {
+            return new Iterator(this, prefetchCount);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
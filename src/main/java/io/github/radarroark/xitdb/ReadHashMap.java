@@ -1,5 +1,11 @@
 package io.github.radarroark.xitdb;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 public class ReadHashMap implements Slotted, Iterable<ReadCursor> {
     public ReadCursor cursor;
 
@@ -28,55 +34,99 @@ public class ReadHashMap implements Slotted, Iterable<ReadCursor> {
     // methods that take a string key and hash it for you
 
     public ReadCursor getCursor(String key) throws Exception {
-        return getCursor(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return getCursor(this.cursor.db.hash(key));
+    }
+
+    public CompletableFuture<ReadCursor> getCursorAsync(String key) throws Exception {
+        return getCursorAsync(this.cursor.db.hash(key));
     }
 
     public Slot getSlot(String key) throws Exception {
-        return getSlot(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return getSlot(this.cursor.db.hash(key));
     }
 
     public ReadCursor getKeyCursor(String key) throws Exception {
-        return getKeyCursor(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return getKeyCursor(this.cursor.db.hash(key));
     }
 
     public Slot getKeySlot(String key) throws Exception {
-        return getKeySlot(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return getKeySlot(this.cursor.db.hash(key));
     }
 
     public ReadCursor.KeyValuePairCursor getKeyValuePair(String key) throws Exception {
-        return getKeyValuePair(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return getKeyValuePair(this.cursor.db.hash(key));
     }
 
     // methods that take a Database.Bytes key and hash it for you
 
     public ReadCursor getCursor(Database.Bytes key) throws Exception {
-        return getCursor(this.cursor.db.md.digest(key.value()));
+        return getCursor(this.cursor.db.hash(key.value()));
+    }
+
+    public CompletableFuture<ReadCursor> getCursorAsync(Database.Bytes key) throws Exception {
+        return getCursorAsync(this.cursor.db.hash(key.value()));
     }
 
     public Slot getSlot(Database.Bytes key) throws Exception {
-        return getSlot(this.cursor.db.md.digest(key.value()));
+        return getSlot(this.cursor.db.hash(key.value()));
     }
 
     public ReadCursor getKeyCursor(Database.Bytes key) throws Exception {
-        return getKeyCursor(this.cursor.db.md.digest(key.value()));
+        return getKeyCursor(this.cursor.db.hash(key.value()));
     }
 
     public Slot getKeySlot(Database.Bytes key) throws Exception {
-        return getKeySlot(this.cursor.db.md.digest(key.value()));
+        return getKeySlot(this.cursor.db.hash(key.value()));
     }
 
     public ReadCursor.KeyValuePairCursor getKeyValuePair(Database.Bytes key) throws Exception {
-        return getKeyValuePair(this.cursor.db.md.digest(key.value()));
+        return getKeyValuePair(this.cursor.db.hash(key.value()));
+    }
+
+    // looks up many keys at once, reading each index block only once
+    // for all of them. keys that aren't found map to null.
+    public Map<String, ReadCursor> getAll(Collection<String> keys) throws Exception {
+        var keyList = new ArrayList<>(keys);
+        var hashes = new byte[keyList.size()][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = this.cursor.db.hash(keyList.get(i));
+        }
+        var cursors = getAll(hashes);
+        var result = new LinkedHashMap<String, ReadCursor>();
+        for (int i = 0; i < cursors.length; i++) {
+            result.put(keyList.get(i), cursors[i]);
+        }
+        return result;
     }
 
     // methods that take a hash directly
 
+    public ReadCursor[] getAll(byte[][] hashes) throws Exception {
+        var db = this.cursor.db;
+        var slotPtrs = db.readMapValueSlotPointers(this.cursor.slotPtr, hashes);
+        var cursors = new ReadCursor[slotPtrs.length];
+        for (int i = 0; i < slotPtrs.length; i++) {
+            if (slotPtrs[i] != null) {
+                cursors[i] = new ReadCursor(slotPtrs[i], db);
+            }
+        }
+        return cursors;
+    }
+
     public ReadCursor getCursor(byte[] hash) throws Exception {
         return this.cursor.readPath(new Database.PathPart[]{
             new Database.HashMapGet(new Database.HashMapGetValue(hash))
         });
     }
 
+    // doesn't block on i/o if the db's core is a CoreAsyncFile.
+    // completes with null if the key isn't found.
+    public CompletableFuture<ReadCursor> getCursorAsync(byte[] hash) {
+        var db = this.cursor.db;
+        return db.readMapSlotPointerAsync(this.cursor.slotPtr, new Database.HashMapGetValue(hash))
+            .thenApply(slotPtr -> slotPtr == null ? null : new ReadCursor(slotPtr, db));
+    }
+
     public Slot getSlot(byte[] hash) throws Exception {
         return this.cursor.readPathSlot(new Database.PathPart[]{
             new Database.HashMapGet(new Database.HashMapGetValue(hash))
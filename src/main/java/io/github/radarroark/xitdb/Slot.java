@@ -1,10 +1,15 @@
 package io.github.radarroark.xitdb;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public record Slot(long value, Tag tag, boolean full) implements Database.WriteableData {
     public static int length = 9;
 
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     public Slot() {
         this(0, Tag.NONE, false);
     }
@@ -35,11 +40,21 @@ public record Slot(long value, Tag tag, boolean full) implements Database.Writea
     }
 
     public static Slot fromBytes(byte[] bytes) {
-        var buffer = ByteBuffer.wrap(bytes);
-        var tagByte = buffer.get();
+        return fromBytes(bytes, 0);
+    }
+
+    // decodes the slot directly from the given offset,
+    // so a block of slots can be decoded without copying
+    public static Slot fromBytes(byte[] bytes, int offset) {
+        var tagByte = bytes[offset];
         var full = (tagByte & 0b1000_0000) != 0;
         var tag = Tag.valueOf(tagByte & 0b0111_1111);
-        var value = buffer.getLong();
+        var value = getLong(bytes, offset + 1);
         return new Slot(value, tag, full);
     }
+
+    // reads a big endian long without wrapping the array in a ByteBuffer
+    static long getLong(byte[] bytes, int offset) {
+        return (long) LONG.get(bytes, offset);
+    }
 }
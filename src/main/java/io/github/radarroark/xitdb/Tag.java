@@ -14,9 +14,13 @@ public enum Tag {
     FLOAT,
     HASH_SET,
     COUNTED_HASH_MAP,
-    COUNTED_HASH_SET;
+    COUNTED_HASH_SET,
+    COMPACT_INDEX;
+
+    // values() returns a new array every time, so keep one around
+    private static final Tag[] VALUES = Tag.values();
 
     public static Tag valueOf(int n) {
-        return Tag.values()[n];
+        return VALUES[n];
     }
 }
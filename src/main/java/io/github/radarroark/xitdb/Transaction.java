@@ -0,0 +1,156 @@
+package io.github.radarroark.xitdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// a transaction that is prepared without holding the write lock, so many
+// threads can build their own at the same time. it reads from the moment
+// that was the most recent when it began, and its writes are only kept
+// in memory until it is committed.
+//
+// committing checks that every slot the transaction read, and every slot
+// it writes to, is still the same in the most recent moment. the database
+// is copy-on-write, so a slot only stays the same if nothing under it was
+// changed. if they are, the writes are applied on top of the most recent
+// moment as a new one. otherwise, the commit throws a
+// TransactionConflictException and the transaction can be run again.
+//
+// reads don't see the transaction's own writes. the data to write should
+// be prepared before it is staged, so the work done while committing
+// (which holds the write lock) is just the writes themselves.
+public class Transaction {
+    record Read(Database.PathPart[] path, Slot slot) {}
+
+    WriteArrayList history;
+    Database db;
+    long baseIndex;
+    ReadCursor base;
+    Slot baseSlot;
+    ArrayList<Read> reads;
+    ArrayList<Database.PathPart[]> writes;
+    boolean committed;
+
+    public Transaction(WriteArrayList history) throws Exception {
+        this.history = history;
+        this.db = history.cursor.db;
+        this.baseIndex = history.count() - 1;
+        this.base = this.baseIndex < 0 ? null : history.getCursor(this.baseIndex);
+        this.baseSlot = this.base == null ? null : this.base.slot();
+        this.reads = new ArrayList<>();
+        this.writes = new ArrayList<>();
+        this.committed = false;
+    }
+
+    // the index of the moment that the transaction reads from,
+    // or -1 if the history was empty when it began
+    public long baseIndex() {
+        return this.baseIndex;
+    }
+
+    public ReadCursor readPath(Database.PathPart[] path) throws Exception {
+        var cursor = this.base == null ? null : this.base.readPath(path);
+        this.reads.add(new Read(path, cursor == null || cursor.slot().empty() ? null : cursor.slot()));
+        return cursor;
+    }
+
+    public Slot readPathSlot(Database.PathPart[] path) throws Exception {
+        var slot = this.base == null ? null : this.base.readPathSlot(path);
+        this.reads.add(new Read(path, slot));
+        return slot;
+    }
+
+    // stages a write, which is applied like WriteCursor.writePath
+    // on the cursor of the new moment when the transaction commits
+    public void writePath(Database.PathPart[] path) throws Exception {
+        if (this.committed) throw new IllegalStateException("The transaction was already committed");
+        var slotPath = slotPath(path);
+        this.reads.add(new Read(slotPath, this.base == null ? null : this.base.readPathSlot(slotPath)));
+        this.writes.add(path);
+    }
+
+    // convenience methods for writing to the keys of a map, like the
+    // ones in WriteBatch. the map is created if it doesn't exist.
+
+    public void put(Database.PathPart[] mapPath, String key, Database.WriteableData data) throws Exception {
+        put(mapPath, new Database.Bytes(key), data);
+    }
+
+    public void put(Database.PathPart[] mapPath, Database.Bytes key, Database.WriteableData data) throws Exception {
+        var hash = this.db.hash(key.value());
+        writePath(append(mapPath, new Database.HashMapInit(), new Database.HashMapGet(new Database.HashMapGetKey(hash)), new Database.WriteData(key)));
+        writePath(append(mapPath, new Database.HashMapInit(), new Database.HashMapGet(new Database.HashMapGetValue(hash)), new Database.WriteData(data)));
+    }
+
+    public void put(Database.PathPart[] mapPath, byte[] hash, Database.WriteableData data) throws Exception {
+        writePath(append(mapPath, new Database.HashMapInit(), new Database.HashMapGet(new Database.HashMapGetValue(hash)), new Database.WriteData(data)));
+    }
+
+    // checks for conflicts and appends the writes to the history as a
+    // new moment. a transaction without writes only checks its reads.
+    public void commit() throws Exception {
+        if (this.committed) throw new IllegalStateException("The transaction was already committed");
+        synchronized (this.db.writeLock) {
+            // the history can change without its count changing, such as
+            // by slicing it and appending, or by replacing the last moment,
+            // so the base is only still the latest if its slot is the same
+            var latestIndex = this.history.count() - 1;
+            var latest = latestIndex < 0 ? null : this.history.getCursor(latestIndex);
+            var latestSlot = latest == null ? null : latest.slot();
+            var isBaseLatest = latestIndex == this.baseIndex && (latestSlot == null ? this.baseSlot == null : latestSlot.equals(this.baseSlot));
+            if (!isBaseLatest) {
+                for (var read : this.reads) {
+                    Slot slot;
+                    try {
+                        slot = latest == null ? null : latest.readPathSlot(read.path());
+                    } catch (Database.DatabaseException e) {
+                        // the path can no longer be followed, such as if
+                        // a map was replaced with something else
+                        throw new Database.TransactionConflictException();
+                    }
+                    if (slot == null ? read.slot() != null : !slot.equals(read.slot())) {
+                        throw new Database.TransactionConflictException();
+                    }
+                }
+            }
+
+            if (!this.writes.isEmpty()) {
+                this.history.appendContext(this.history.getSlot(-1), (cursor) -> {
+                    var batch = new WriteBatch(cursor);
+                    for (var path : this.writes) {
+                        batch.add(path);
+                    }
+                    batch.execute();
+                });
+            }
+            this.committed = true;
+        }
+    }
+
+    private static Database.PathPart[] append(Database.PathPart[] path, Database.PathPart... parts) {
+        var newPath = Arrays.copyOf(path, path.length + parts.length);
+        System.arraycopy(parts, 0, newPath, path.length, parts.length);
+        return newPath;
+    }
+
+    // the path of the slot that a write changes: the parts that go to a
+    // slot, without the ones that only initialize it. anything after them
+    // (such as appending to a list) changes that slot, so it is checked
+    // as a whole.
+    private static Database.PathPart[] slotPath(Database.PathPart[] path) {
+        var slotPath = new ArrayList<Database.PathPart>();
+        for (var part : path) {
+            if (part instanceof Database.HashMapInit
+                || part instanceof Database.ArrayListInit
+                || part instanceof Database.LinkedArrayListInit) {
+                continue;
+            } else if (part instanceof Database.HashMapGet
+                || part instanceof Database.ArrayListGet
+                || part instanceof Database.LinkedArrayListGet) {
+                slotPath.add(part);
+            } else {
+                break;
+            }
+        }
+        return slotPath.toArray(new Database.PathPart[0]);
+    }
+}
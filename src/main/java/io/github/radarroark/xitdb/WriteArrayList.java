@@ -12,6 +12,11 @@ public class WriteArrayList extends ReadArrayList {
         return ((WriteCursor)this.cursor).iterator();
     }
 
+    @Override
+    public WriteCursor.Iterator iterator(int prefetchCount) {
+        return ((WriteCursor)this.cursor).iterator(prefetchCount);
+    }
+
     public void put(long index, Database.WriteableData data) throws Exception {
         ((WriteCursor)this.cursor).writePath(new Database.PathPart[]{
             new Database.ArrayListGet(index),
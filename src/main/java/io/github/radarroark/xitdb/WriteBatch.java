@@ -0,0 +1,285 @@
+package io.github.radarroark.xitdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// collects many writes from the same cursor and applies them together.
+// the paths are merged into a tree, so a part that several of them start
+// with (like getting the same key of a map) is only followed once, and
+// the rest of each path is applied from there. writes of data to many
+// keys of the same map are combined into a single HashMapPutAll, so each
+// of the map's index blocks is copied and written at most once, in slot
+// order rather than in the order the writes were added.
+//
+// the result is the same as calling writePath with each path in the
+// order they were added. paths are only merged when the writes between
+// them can't affect each other, which is when they are all to different
+// keys of the same map.
+public class WriteBatch {
+    static class Node {
+        Database.PathPart part;
+        ArrayList<Node> children = new ArrayList<>(1);
+        // the indexes of the children that get a key of a map, by its hash
+        HashMap<ByteBuffer, ArrayList<Integer>> mapGetChildren;
+        // the index of the last child that doesn't get a key of a map
+        int lastOtherChild = -1;
+
+        Node(Database.PathPart part) {
+            this.part = part;
+        }
+    }
+
+    WriteCursor cursor;
+    Node root;
+    int size;
+
+    public WriteBatch(WriteCursor cursor) {
+        this.cursor = cursor;
+        this.root = new Node(null);
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void add(Database.PathPart[] path) {
+        var node = this.root;
+        for (var part : path) {
+            node = child(node, part);
+        }
+        this.size += 1;
+    }
+
+    // convenience methods for writing to the keys of a map, which
+    // must already exist at the given path. like WriteHashMap.put,
+    // the string and Database.Bytes overloads also store the key.
+
+    public void put(Database.PathPart[] mapPath, String key, Database.WriteableData data) throws Exception {
+        put(mapPath, new Database.Bytes(key), data);
+    }
+
+    public void put(Database.PathPart[] mapPath, Database.Bytes key, Database.WriteableData data) throws Exception {
+        var hash = this.cursor.db.hash(key.value());
+        add(append(mapPath, new Database.HashMapGet(new Database.HashMapGetKey(hash)), new Database.WriteData(key)));
+        add(append(mapPath, new Database.HashMapGet(new Database.HashMapGetValue(hash)), new Database.WriteData(data)));
+    }
+
+    public void put(Database.PathPart[] mapPath, byte[] hash, Database.WriteableData data) throws Exception {
+        add(append(mapPath, new Database.HashMapGet(new Database.HashMapGetValue(hash)), new Database.WriteData(data)));
+    }
+
+    // applies all of the writes and empties the batch
+    public void execute() throws Exception {
+        var db = this.cursor.db;
+        // the lock is held for the whole batch, so no other thread's
+        // transaction can start or end while it is checked and applied
+        synchronized (db.writeLock) {
+            // a write outside of a transaction normally syncs when it completes,
+            // so only do that once for the whole batch. the deferral only
+            // applies to this thread, like the one GroupCommit uses.
+            var isSyncDeferred = db.isSyncDeferred.get();
+            var isOutermost = db.txStart == null && !isSyncDeferred;
+            db.isSyncDeferred.set(true);
+            try {
+                apply(this.cursor, this.root.children);
+            } finally {
+                db.isSyncDeferred.set(isSyncDeferred);
+                this.root = new Node(null);
+                this.size = 0;
+            }
+            if (isOutermost) {
+                var isCommit = this.cursor.slotPtr.slot().value() == Database.DATABASE_START && db.header.tag() == Tag.ARRAY_LIST;
+                db.completeWrite(isCommit);
+            }
+        }
+    }
+
+    private static Database.PathPart[] append(Database.PathPart[] path, Database.PathPart... parts) {
+        var newPath = Arrays.copyOf(path, path.length + parts.length);
+        System.arraycopy(parts, 0, newPath, path.length, parts.length);
+        return newPath;
+    }
+
+    // returns the child of the node to add the part to, either one that
+    // it can be merged into or a new one
+    private static Node child(Node node, Database.PathPart part) {
+        if (part instanceof Database.HashMapGet get) {
+            // look back past the children that can't be affected by it.
+            // gets of other keys never are, so only check the ones for its key.
+            var indexes = node.mapGetChildren == null ? null : node.mapGetChildren.get(ByteBuffer.wrap(targetHash(get.target())));
+            if (indexes != null) {
+                for (int i = indexes.size() - 1; i >= 0 && indexes.get(i) > node.lastOtherChild; i--) {
+                    var child = node.children.get(indexes.get(i));
+                    if (isSamePart(child.part, part)) return child;
+                    if (!isIndependent(child.part, part)) break;
+                }
+            }
+        } else if (isNavigation(part) && !node.children.isEmpty()) {
+            var child = node.children.get(node.children.size() - 1);
+            if (isSamePart(child.part, part)) return child;
+        }
+
+        var child = new Node(part);
+        node.children.add(child);
+        if (part instanceof Database.HashMapGet get) {
+            if (node.mapGetChildren == null) node.mapGetChildren = new HashMap<>();
+            node.mapGetChildren.computeIfAbsent(ByteBuffer.wrap(targetHash(get.target())), (k) -> new ArrayList<>()).add(node.children.size() - 1);
+        } else {
+            node.lastOtherChild = node.children.size() - 1;
+        }
+        return child;
+    }
+
+    // parts that only go to a slot (creating it if necessary), so
+    // following them twice is the same as following them once
+    private static boolean isNavigation(Database.PathPart part) {
+        return part instanceof Database.HashMapInit
+            || part instanceof Database.HashMapGet
+            || part instanceof Database.ArrayListInit
+            || part instanceof Database.ArrayListGet
+            || part instanceof Database.LinkedArrayListInit
+            || part instanceof Database.LinkedArrayListGet;
+    }
+
+    private static boolean isSamePart(Database.PathPart a, Database.PathPart b) {
+        if (a instanceof Database.HashMapGet getA && b instanceof Database.HashMapGet getB) {
+            var targetA = getA.target();
+            var targetB = getB.target();
+            return targetA.getClass() == targetB.getClass() && Arrays.equals(targetHash(targetA), targetHash(targetB));
+        }
+        return isNavigation(a) && a.equals(b);
+    }
+
+    // the key and the value of a map entry are separate slots, so writes
+    // to different keys, or to the key and value of the same one, are
+    // independent. the kv pair target is the whole entry.
+    private static boolean isIndependent(Database.PathPart a, Database.PathPart b) {
+        if (a instanceof Database.HashMapGet getA && b instanceof Database.HashMapGet getB) {
+            var targetA = getA.target();
+            var targetB = getB.target();
+            if (targetA instanceof Database.HashMapGetKVPair || targetB instanceof Database.HashMapGetKVPair) {
+                return !Arrays.equals(targetHash(targetA), targetHash(targetB));
+            }
+            return !isSamePart(a, b);
+        }
+        return false;
+    }
+
+    private static byte[] targetHash(Database.HashMapGetTarget target) {
+        if (target instanceof Database.HashMapGetKVPair kvPairTarget) {
+            return kvPairTarget.hash();
+        } else if (target instanceof Database.HashMapGetKey keyTarget) {
+            return keyTarget.hash();
+        } else if (target instanceof Database.HashMapGetValue valueTarget) {
+            return valueTarget.hash();
+        } else {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private void apply(WriteCursor cursor, List<Node> nodes) throws Exception {
+        var i = 0;
+        while (i < nodes.size()) {
+            // the writes of data to keys of the map that are next to each
+            // other are independent, so they can all be put at once
+            var runEnd = i;
+            while (runEnd < nodes.size() && isKeyWrite(nodes.get(runEnd))) {
+                runEnd += 1;
+            }
+            if (runEnd - i > 1) {
+                putAll(cursor, nodes.subList(i, runEnd));
+                i = runEnd;
+            } else {
+                apply(cursor, nodes.get(i));
+                i += 1;
+            }
+        }
+    }
+
+    private void apply(WriteCursor cursor, Node node) throws Exception {
+        if (node.children.isEmpty()) {
+            cursor.writePath(new Database.PathPart[]{node.part});
+        } else {
+            cursor.writePath(new Database.PathPart[]{
+                node.part,
+                new Database.Context((nextCursor) -> apply(nextCursor, node.children))
+            });
+        }
+    }
+
+    // a write of data to the key or value of a map entry
+    private static boolean isKeyWrite(Node node) {
+        if (!(node.part instanceof Database.HashMapGet get)) return false;
+        var isKey = get.target() instanceof Database.HashMapGetKey;
+        if (!isKey && !(get.target() instanceof Database.HashMapGetValue)) return false;
+        if (node.children.isEmpty()) return false;
+        for (var child : node.children) {
+            if (!(child.part instanceof Database.WriteData writeData) || !child.children.isEmpty()) return false;
+            // a key can't be cleared with HashMapPutAll
+            if (isKey && writeData.data() == null) return false;
+        }
+        return true;
+    }
+
+    static class Entry {
+        byte[] hash;
+        Database.WriteableData key;
+        Database.WriteableData value;
+        boolean hasValue;
+
+        Entry(byte[] hash) {
+            this.hash = hash;
+        }
+    }
+
+    // HashMapPutAll writes a key the same way WriteData does, replacing
+    // the stored one, so merging the writes doesn't change the result
+    private void putAll(WriteCursor cursor, List<Node> nodes) throws Exception {
+        var entries = new LinkedHashMap<ByteBuffer, Entry>();
+        for (var node : nodes) {
+            var target = ((Database.HashMapGet) node.part).target();
+            var hash = targetHash(target);
+            var entry = entries.computeIfAbsent(ByteBuffer.wrap(hash), (k) -> new Entry(hash));
+            // if the same slot is written more than once, the last one wins
+            var data = ((Database.WriteData) node.children.get(node.children.size() - 1).part).data();
+            if (target instanceof Database.HashMapGetKey) {
+                entry.key = data;
+            } else {
+                entry.value = data;
+                entry.hasValue = true;
+            }
+        }
+
+        var hashes = new ArrayList<byte[]>();
+        var keys = new ArrayList<Database.WriteableData>();
+        var values = new ArrayList<Database.WriteableData>();
+        for (var entry : entries.values()) {
+            if (!entry.hasValue) {
+                // HashMapPutAll always writes the value, so a key
+                // without a value must be written by itself
+                cursor.writePath(new Database.PathPart[]{
+                    new Database.HashMapGet(new Database.HashMapGetKey(entry.hash)),
+                    new Database.WriteData(entry.key)
+                });
+                continue;
+            }
+            hashes.add(entry.hash);
+            keys.add(entry.key);
+            values.add(entry.value);
+        }
+        if (hashes.isEmpty()) return;
+
+        cursor.writePath(new Database.PathPart[]{
+            new Database.HashMapPutAll(
+                hashes.toArray(new byte[0][]),
+                keys.toArray(new Database.WriteableData[0]),
+                values.toArray(new Database.WriteableData[0])
+            )
+        });
+    }
+}
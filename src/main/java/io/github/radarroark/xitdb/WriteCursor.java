@@ -8,11 +8,14 @@ public class WriteCursor extends ReadCursor {
     }
 
     public WriteCursor writePath(Database.PathPart[] path) throws Exception {
-        var slotPtr = this.db.readSlotPointer(Database.WriteMode.READ_WRITE, path, 0, this.slotPtr);
-        if (this.db.txStart == null) {
-            this.db.core.sync();
+        synchronized (this.db.writeLock) {
+            var slotPtr = this.db.readSlotPointer(Database.WriteMode.READ_WRITE, path, 0, this.slotPtr);
+            if (this.db.txStart == null && !this.db.isSyncDeferred.get()) {
+                var isCommit = this.slotPtr.slot().value() == Database.DATABASE_START && this.db.header.tag() == Tag.ARRAY_LIST;
+                this.db.completeWrite(isCommit);
+            }
+            return new WriteCursor(slotPtr, this.db);
         }
-        return new WriteCursor(slotPtr, this.db);
     }
 
     public void write(Database.WriteableData data) throws Exception {
@@ -138,6 +141,10 @@ public class WriteCursor extends ReadCursor {
             super(cursor);
         }
 
+        public Iterator(WriteCursor cursor, int prefetchCount) throws IOException {
+            super(cursor, prefetchCount);
+        }
+
         @Override
         public boolean hasNext() {
             return super.hasNext();
@@ -163,4 +170,13 @@ public class WriteCursor extends ReadCursor {
             throw new RuntimeException(e);
         }
     }
+
+    @Override
+    public Iterator iterator(int prefetchCount) {
+        try {
+            return new Iterator(this, prefetchCount);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
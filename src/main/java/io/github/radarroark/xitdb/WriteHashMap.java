@@ -1,5 +1,8 @@
 package io.github.radarroark.xitdb;
 
+import java.util.Collection;
+import java.util.Map;
+
 public class WriteHashMap extends ReadHashMap {
     protected WriteHashMap() {
     }
@@ -18,57 +21,85 @@ public class WriteHashMap extends ReadHashMap {
     // methods that take a string key and hash it for you
 
     public void put(String key, Database.WriteableData data) throws Exception {
-        var hash = this.cursor.db.md.digest(key.getBytes("UTF-8"));
+        var hash = this.cursor.db.hash(key);
         // this overload also stores the key
         putKey(hash, new Database.Bytes(key));
         put(hash, data);
     }
 
     public WriteCursor putCursor(String key) throws Exception {
-        var hash = this.cursor.db.md.digest(key.getBytes("UTF-8"));
+        var hash = this.cursor.db.hash(key);
         // this overload also stores the key
         putKey(hash, new Database.Bytes(key));
         return putCursor(hash);
     }
 
     public void putKey(String key, Database.WriteableData data) throws Exception {
-        putKey(this.cursor.db.md.digest(key.getBytes("UTF-8")), data);
+        putKey(this.cursor.db.hash(key), data);
     }
 
     public WriteCursor putKeyCursor(String key) throws Exception {
-        return putKeyCursor(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return putKeyCursor(this.cursor.db.hash(key));
     }
 
     public boolean remove(String key) throws Exception {
-        return remove(this.cursor.db.md.digest(key.getBytes("UTF-8")));
+        return remove(this.cursor.db.hash(key));
+    }
+
+    // puts all of the entries in a single pass over the map, which is much
+    // faster than calling put for each of them. like put, this also stores the keys.
+    public void putAll(Map<String, ? extends Database.WriteableData> entries) throws Exception {
+        var hashes = new byte[entries.size()][];
+        var keys = new Database.WriteableData[entries.size()];
+        var values = new Database.WriteableData[entries.size()];
+        var i = 0;
+        for (var entry : entries.entrySet()) {
+            hashes[i] = this.cursor.db.hash(entry.getKey());
+            keys[i] = new Database.Bytes(entry.getKey());
+            values[i] = entry.getValue();
+            i += 1;
+        }
+        putAll(hashes, keys, values);
+    }
+
+    // removes all of the keys in a single pass over the map,
+    // and returns the number of keys that were removed
+    public long removeAll(Collection<String> keys) throws Exception {
+        var hashes = new byte[keys.size()][];
+        var i = 0;
+        for (var key : keys) {
+            hashes[i] = this.cursor.db.hash(key);
+            i += 1;
+        }
+        return removeAll(hashes);
     }
 
     // methods that take a Database.Bytes key and hash it for you
 
     public void put(Database.Bytes key, Database.WriteableData data) throws Exception {
-        var hash = this.cursor.db.md.digest(key.value());
+        var hash = this.cursor.db.hash(key.value());
         // this overload also stores the key
         putKey(hash, key);
         put(hash, data);
     }
 
     public WriteCursor putCursor(Database.Bytes key) throws Exception {
-        var hash = this.cursor.db.md.digest(key.value());
+        var hash = this.cursor.db.hash(key.value());
         // this overload also stores the key
         putKey(hash, key);
         return putCursor(hash);
     }
 
     public void putKey(Database.Bytes key, Database.WriteableData data) throws Exception {
-        putKey(this.cursor.db.md.digest(key.value()), data);
+        putKey(this.cursor.db.hash(key.value()), data);
     }
 
     public WriteCursor putKeyCursor(Database.Bytes key) throws Exception {
-        return putKeyCursor(this.cursor.db.md.digest(key.value()));
+        return putKeyCursor(this.cursor.db.hash(key.value()));
     }
 
     public boolean remove(Database.Bytes key) throws Exception {
-        return remove(this.cursor.db.md.digest(key.value()));
+        return remove(this.cursor.db.hash(key.value()));
     }
 
     // methods that take a hash directly
@@ -101,6 +132,20 @@ public class WriteHashMap extends ReadHashMap {
         });
     }
 
+    // the keys may be null, in which case they aren't written and existing
+    // entries keep their keys. keys that are given replace the stored ones.
+    public void putAll(byte[][] hashes, Database.WriteableData[] keys, Database.WriteableData[] values) throws Exception {
+        if (keys != null && keys.length != hashes.length) throw new IllegalArgumentException("There must be one key for each hash");
+        if (values.length != hashes.length) throw new IllegalArgumentException("There must be one value for each hash");
+        ((WriteCursor)this.cursor).writePath(new Database.PathPart[]{
+            new Database.HashMapPutAll(hashes, keys, values)
+        });
+    }
+
+    public long removeAll(byte[][] hashes) throws Exception {
+        return this.cursor.db.removeMapKeys((WriteCursor)this.cursor, hashes);
+    }
+
     public boolean remove(byte[] hash) throws Exception {
         try {
             ((WriteCursor)this.cursor).writePath(new Database.PathPart[]{
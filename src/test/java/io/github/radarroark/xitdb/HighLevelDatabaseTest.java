@@ -1,17 +1,30 @@
 package io.github.radarroark.xitdb;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.jupiter.api.Test;
 
@@ -26,6 +39,18 @@ class HighLevelDatabaseTest {
             testHighLevelApi(core, hasher, null);
         }
 
+        try (var ram = new RandomAccessChunkedMemory()) {
+            var core = new CoreChunkedMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            testHighLevelApi(core, hasher, null);
+        }
+
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = Hasher.murmur3();
+            testHighLevelApi(core, hasher, null);
+        }
+
         {
             var file = File.createTempFile("database", "");
             file.deleteOnExit();
@@ -47,6 +72,67 @@ class HighLevelDatabaseTest {
                 testHighLevelApi(core, hasher, file);
             }
         }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            try (var raf = new RandomAccessMappedFile(file, "rw")) {
+                var core = new CoreMappedFile(raf);
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testHighLevelApi(core, hasher, file);
+            }
+        }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            try (var raf = new RandomAccessAsyncFile(file, "rw")) {
+                var core = new CoreAsyncFile(raf);
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testHighLevelApi(core, hasher, file);
+            }
+        }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            try (var raf = new RandomAccessFile(file, "rw")) {
+                var core = new CoreCached(new CoreFile(raf));
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testHighLevelApi(core, hasher, file);
+                assertTrue(core.hitCount() > 0);
+            }
+        }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            try (var raf = new RandomAccessFile(file, "rw")) {
+                var core = new CoreTransactionBuffer(new CoreFile(raf));
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testHighLevelApi(core, hasher, file);
+            }
+        }
+    }
+
+    @Test
+    void testHighLevelApiDirectFile() throws Exception {
+        // some file systems (such as tmpfs) don't support direct i/o
+        assumeTrue(LowLevelDatabaseTest.isDirectIoSupported());
+
+        var file = File.createTempFile("database", "");
+        file.deleteOnExit();
+
+        // direct i/o bypasses the OS page cache, so it is paired with our own cache
+        try (var raf = new RandomAccessDirectFile(file, "rw")) {
+            var core = new CoreCached(new CoreDirectFile(raf), raf.alignment(), 1024 * 1024);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            testHighLevelApi(core, hasher, file);
+        }
     }
 
     @Test
@@ -340,6 +426,1304 @@ class HighLevelDatabaseTest {
         ((CoreFile)db.get().core).file.close();
     }
 
+    @Test
+    void testSharedDatabaseMultithreading() throws Exception {
+        var resource = getClass().getClassLoader().getResource("test.db");
+        File file = new File(resource.toURI());
+
+        // reads don't use the db's read position and keys are hashed with
+        // a digest per thread, so a single Database object can be shared
+        // by many reader threads
+        for (int coreKind = 0; coreKind < 4; coreKind++) {
+            try (var raf = new RandomAccessFile(file, "r");
+                 var mappedFile = new RandomAccessMappedFile(file, "r", 64);
+                 var bufferedFile = new RandomAccessBufferedFile(file, "r")) {
+                Core core = switch (coreKind) {
+                    case 0 -> new CoreFile(raf);
+                    case 1 -> new CoreMappedFile(mappedFile);
+                    case 2 -> new CoreBufferedFile(bufferedFile);
+                    default -> new CoreFile(raf);
+                };
+                // the last pass uses a digest that can't be cloned, so the threads share it
+                var hasher = new Hasher(coreKind < 3 ? MessageDigest.getInstance("SHA-1") : new UncloneableDigest());
+                var db = new Database(core, hasher);
+
+                var error = new AtomicReference<Throwable>();
+                var threads = new Thread[8];
+                for (int t = 0; t < threads.length; t++) {
+                    threads[t] = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < 100; i++) {
+                                var history = new ReadArrayList(db.rootCursor());
+                                var moment = new ReadHashMap(history.getCursor(0));
+
+                                // each thread hashes keys with its own copy of the digest
+                                var fooValue = moment.getCursor("foo").readBytes(MAX_READ_BYTES);
+                                assertEquals("foo", new String(fooValue));
+
+                                var fruits = new ReadArrayList(moment.getCursor("fruits"));
+                                assertEquals(3, fruits.count());
+                                var iter = fruits.iterator();
+                                assertEquals("apple", new String(iter.next().readBytes(MAX_READ_BYTES)));
+
+                                var reader = fruits.getCursor(0).reader();
+                                var appleBytes = new byte[5];
+                                reader.readFully(appleBytes);
+                                assertEquals("apple", new String(appleBytes));
+                            }
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    });
+                    threads[t].start();
+                }
+
+                for (var thread : threads) {
+                    thread.join();
+                }
+
+                if (error.get() != null) {
+                    throw new RuntimeException(error.get());
+                }
+            }
+        }
+    }
+
+    // wraps SHA-1 in a digest that doesn't support clone
+    static class UncloneableDigest extends MessageDigest {
+        MessageDigest md;
+
+        UncloneableDigest() throws Exception {
+            super("SHA-1");
+            this.md = MessageDigest.getInstance("SHA-1");
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return this.md.getDigestLength();
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            this.md.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            this.md.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            return this.md.digest();
+        }
+
+        @Override
+        protected void engineReset() {
+            this.md.reset();
+        }
+    }
+
+    @Test
+    void testGroupCommit() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            // count the syncs, and the ones made by the main thread
+            var syncCount = new AtomicInteger();
+            var mainSyncCount = new AtomicInteger();
+            var mainThread = Thread.currentThread();
+            var core = new CoreMemory(ram) {
+                @Override
+                public void sync() throws IOException {
+                    syncCount.incrementAndGet();
+                    if (Thread.currentThread() == mainThread) mainSyncCount.incrementAndGet();
+                    super.sync();
+                }
+            };
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            var history = new WriteArrayList(db.rootCursor());
+
+            var threadCount = 4;
+            var txCount = 50;
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            var failed = new ArrayList<CompletableFuture<Void>>();
+            try (var groupCommit = new GroupCommit(history)) {
+                var threads = new ArrayList<Thread>();
+                for (int t = 0; t < threadCount; t++) {
+                    var threadId = t;
+                    threads.add(new Thread(() -> {
+                        for (int i = 0; i < txCount; i++) {
+                            var key = "thread" + threadId + "-" + i;
+                            var future = groupCommit.submit((cursor) -> {
+                                var moment = new WriteHashMap(cursor);
+                                moment.put(key, new Database.Bytes(key));
+                            });
+                            synchronized (futures) {
+                                futures.add(future);
+                            }
+                        }
+                        // a transaction that fails doesn't affect the others
+                        var future = groupCommit.submit((cursor) -> {
+                            new WriteHashMap(cursor).put("bad", new Database.Bytes("bad"));
+                            throw new IllegalStateException();
+                        });
+                        synchronized (failed) {
+                            failed.add(future);
+                        }
+                    }));
+                }
+                for (var thread : threads) thread.start();
+                for (var thread : threads) thread.join();
+            }
+
+            // closing waits for everything that was submitted
+            for (var future : futures) {
+                assertTrue(future.isDone() && !future.isCompletedExceptionally());
+            }
+            for (var future : failed) {
+                assertTrue(future.isCompletedExceptionally());
+            }
+
+            // each transaction is its own moment, and the
+            // latest one has all of the keys
+            assertEquals(threadCount * txCount, history.count());
+            var moment = new ReadHashMap(history.getCursor(-1));
+            for (int t = 0; t < threadCount; t++) {
+                for (int i = 0; i < txCount; i++) {
+                    var key = "thread" + t + "-" + i;
+                    assertEquals(key, new String(moment.getCursor(key).readBytes(MAX_READ_BYTES)));
+                }
+            }
+            assertEquals(null, moment.getCursor("bad"));
+
+            // transactions from other threads still sync while a group is being written
+            try (var groupCommit = new GroupCommit(history)) {
+                for (int i = 0; i < 100; i++) {
+                    groupCommit.submit((cursor) -> new WriteHashMap(cursor).put("group", new Database.Bytes("group")));
+                }
+                mainSyncCount.set(0);
+                for (int i = 0; i < 20; i++) {
+                    history.appendContext(history.getSlot(-1), (cursor) -> {
+                        new WriteHashMap(cursor).put("main", new Database.Bytes("main"));
+                    });
+                }
+                assertEquals(20, mainSyncCount.get());
+
+                // syncs are only deferred on the thread writing the group
+                var isDeferred = new AtomicReference<Boolean>();
+                var isDeferredElsewhere = new AtomicReference<Boolean>();
+                groupCommit.submit((cursor) -> {
+                    isDeferred.set(db.isSyncDeferred.get());
+                    var thread = new Thread(() -> isDeferredElsewhere.set(db.isSyncDeferred.get()));
+                    thread.start();
+                    thread.join();
+                }).get();
+                assertEquals(true, isDeferred.get());
+                assertEquals(false, isDeferredElsewhere.get());
+            }
+            assertEquals(threadCount * txCount + 121, history.count());
+
+            // transactions that are waiting together are synced together
+            var latch = new CountDownLatch(1);
+            var syncCountBefore = syncCount.get();
+            try (var groupCommit = new GroupCommit(history)) {
+                groupCommit.submit((cursor) -> latch.await());
+                for (int i = 0; i < 10; i++) {
+                    groupCommit.submit((cursor) -> new WriteHashMap(cursor).put("waiting", new Database.Bytes("waiting")));
+                }
+                latch.countDown();
+            }
+            assertEquals(threadCount * txCount + 132, history.count());
+            assertTrue(syncCount.get() - syncCountBefore <= 2);
+
+            var closed = new GroupCommit(history);
+            closed.close();
+            assertThrows(IllegalStateException.class, () -> closed.submit((cursor) -> {}));
+        }
+    }
+
+    @Test
+    void testDurability() throws Exception {
+        // count the syncs and flushes, and fail the syncs when asked to
+        var syncCount = new AtomicInteger();
+        var flushCount = new AtomicInteger();
+        var failSyncs = new AtomicReference<Boolean>(false);
+        class CountingCore extends CoreMemory {
+            CountingCore(RandomAccessMemory ram) {
+                super(ram);
+            }
+
+            @Override
+            public void sync() throws IOException {
+                syncCount.incrementAndGet();
+                if (failSyncs.get()) throw new IOException("sync failed");
+                super.sync();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                flushCount.incrementAndGet();
+                super.flush();
+            }
+        }
+
+        try (var ram = new RandomAccessMemory(); var mapRam = new RandomAccessMemory()) {
+            var core = new CountingCore(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            assertEquals(Database.Durability.SYNC_EACH_WRITE, db.durability());
+            var history = new WriteArrayList(db.rootCursor());
+
+            // a database with a top-level map, which isn't written in transactions
+            var mapDb = new Database(new CountingCore(mapRam), hasher);
+            var map = new WriteHashMap(mapDb.rootCursor());
+
+            // every transaction and every write outside of one is synced
+            syncCount.set(0);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                moment.put("foo", new Database.Bytes("foo"));
+                moment.put("bar", new Database.Bytes("bar"));
+            });
+            assertEquals(1, syncCount.get());
+            syncCount.set(0);
+            for (int i = 0; i < 10; i++) {
+                map.put("key" + i, new Database.Uint(i));
+            }
+            assertTrue(syncCount.get() >= 10);
+
+            // only transactions are synced
+            db.setDurability(Database.Durability.SYNC_ON_COMMIT);
+            mapDb.setDurability(Database.Durability.SYNC_ON_COMMIT);
+            syncCount.set(0);
+            flushCount.set(0);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                new WriteHashMap(cursor).put("foo", new Database.Bytes("foo2"));
+            });
+            assertEquals(1, syncCount.get());
+            syncCount.set(0);
+            for (int i = 0; i < 10; i++) {
+                map.put("key" + i, new Database.Uint(i));
+            }
+            assertEquals(0, syncCount.get());
+            assertTrue(flushCount.get() >= 20);
+
+            // nothing is synced
+            db.setDurability(Database.Durability.NO_SYNC);
+            mapDb.setDurability(Database.Durability.NO_SYNC);
+            syncCount.set(0);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                new WriteHashMap(cursor).put("foo", new Database.Bytes("foo3"));
+            });
+            map.put("key0", new Database.Uint(0));
+            assertEquals(0, syncCount.get());
+
+            // new writes are synced in the background
+            db.setDurability(Database.Durability.PERIODIC, 10);
+            syncCount.set(0);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                new WriteHashMap(cursor).put("foo", new Database.Bytes("foo4"));
+            });
+            for (int i = 0; i < 1000 && syncCount.get() == 0; i++) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, syncCount.get());
+            // there is nothing new to sync
+            Thread.sleep(50);
+            assertEquals(1, syncCount.get());
+
+            // changing the mode stops the background syncs
+            db.setDurability(Database.Durability.NO_SYNC);
+            map.put("key0", new Database.Uint(0));
+            Thread.sleep(50);
+            assertEquals(1, syncCount.get());
+
+            // a failed background sync isn't thrown by the next write,
+            // which succeeds, but by the next explicit sync
+            db.setDurability(Database.Durability.PERIODIC, 10);
+            failSyncs.set(true);
+            syncCount.set(0);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                new WriteHashMap(cursor).put("foo", new Database.Bytes("foo5"));
+            });
+            for (int i = 0; i < 1000 && syncCount.get() == 0; i++) {
+                Thread.sleep(5);
+            }
+            failSyncs.set(false);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                new WriteHashMap(cursor).put("foo", new Database.Bytes("foo6"));
+            });
+            assertThrows(IOException.class, () -> db.sync());
+            db.sync();
+
+            // closing stops the background thread and syncs what it hadn't
+            var threadsBefore = Thread.getAllStackTraces().keySet();
+            var periodicDb = new Database(new CountingCore(new RandomAccessMemory()), hasher);
+            periodicDb.setDurability(Database.Durability.PERIODIC, 60 * 1000);
+            var periodicThread = Thread.getAllStackTraces().keySet().stream()
+                .filter((thread) -> thread.getName().equals("xitdb-periodic-sync") && !threadsBefore.contains(thread))
+                .findFirst()
+                .orElseThrow();
+            var periodicMap = new WriteHashMap(periodicDb.rootCursor());
+            periodicMap.put("foo", new Database.Bytes("foo"));
+            syncCount.set(0);
+            periodicDb.close();
+            assertEquals(1, syncCount.get());
+            periodicThread.join(1000);
+            assertTrue(!periodicThread.isAlive());
+
+            assertEquals("foo6", new String(new ReadHashMap(history.getCursor(-1)).getCursor("foo").readBytes(MAX_READ_BYTES)));
+            assertThrows(IllegalArgumentException.class, () -> db.setDurability(Database.Durability.PERIODIC, 0));
+        }
+    }
+
+    @Test
+    void testGetAll() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+
+            var history = new WriteArrayList(db.rootCursor());
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                var map = new WriteHashMap(moment.putCursor("map"));
+                var countedMap = new WriteCountedHashMap(moment.putCursor("counted-map"));
+                for (int i = 0; i < 1000; i++) {
+                    map.put("key" + i, new Database.Uint(i));
+                    countedMap.put("key" + i, new Database.Uint(i));
+                }
+            });
+
+            var keys = new ArrayList<String>();
+            for (int i = 0; i < 1200; i += 3) {
+                keys.add("key" + i);
+            }
+            keys.add("key3"); // duplicate
+
+            var moment = new ReadHashMap(history.getCursor(-1));
+            for (var map : new ReadHashMap[]{new ReadHashMap(moment.getCursor("map")), new ReadCountedHashMap(moment.getCursor("counted-map"))}) {
+                var results = map.getAll(keys);
+                assertEquals(400, results.size());
+                for (int i = 0; i < 1200; i += 3) {
+                    var cursor = results.get("key" + i);
+                    if (i < 1000) {
+                        assertEquals(i, cursor.readUint());
+                        assertEquals(map.getCursor("key" + i).slotPtr.position(), cursor.slotPtr.position());
+                    } else {
+                        assertEquals(null, cursor);
+                    }
+                }
+            }
+
+            // an empty map returns nulls
+            var emptyMap = new ReadHashMap(new ReadCursor(new SlotPointer(null, new Slot()), db));
+            assertEquals(null, emptyMap.getAll(keys).get("key0"));
+        }
+    }
+
+    @Test
+    void testPutAllAndRemoveAll() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            var history = new WriteArrayList(db.rootCursor());
+
+            // put entries in bulk, including long byte arrays
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                for (var name : new String[]{"map", "counted-map"}) {
+                    var map = name.equals("map") ? new WriteHashMap(moment.putCursor(name)) : new WriteCountedHashMap(moment.putCursor(name));
+                    var entries = new LinkedHashMap<String, Database.WriteableData>();
+                    for (int i = 0; i < 1000; i++) {
+                        entries.put("key" + i, i % 2 == 0 ? new Database.Uint(i) : new Database.Bytes("value " + i));
+                    }
+                    map.putAll(entries);
+                }
+            });
+
+            // update half of them and add more in the next transaction
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                for (var name : new String[]{"map", "counted-map"}) {
+                    var map = name.equals("map") ? new WriteHashMap(moment.putCursor(name)) : new WriteCountedHashMap(moment.putCursor(name));
+                    var entries = new LinkedHashMap<String, Database.WriteableData>();
+                    for (int i = 500; i < 1500; i++) {
+                        entries.put("key" + i, new Database.Uint(i * 10));
+                    }
+                    map.putAll(entries);
+                }
+            });
+
+            // remove some of them, including keys that don't exist
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                for (var name : new String[]{"map", "counted-map"}) {
+                    var map = name.equals("map") ? new WriteHashMap(moment.putCursor(name)) : new WriteCountedHashMap(moment.putCursor(name));
+                    var keys = new ArrayList<String>();
+                    for (int i = 0; i < 2000; i += 2) {
+                        keys.add("key" + i);
+                    }
+                    assertEquals(750, map.removeAll(keys));
+                }
+            });
+
+            for (var name : new String[]{"map", "counted-map"}) {
+                var cursor0 = new ReadHashMap(history.getCursor(0)).getCursor(name);
+                var cursor1 = new ReadHashMap(history.getCursor(1)).getCursor(name);
+                var cursor2 = new ReadHashMap(history.getCursor(2)).getCursor(name);
+                var isCounted = name.equals("counted-map");
+                var map0 = isCounted ? new ReadCountedHashMap(cursor0) : new ReadHashMap(cursor0);
+                var map1 = isCounted ? new ReadCountedHashMap(cursor1) : new ReadHashMap(cursor1);
+                var map2 = isCounted ? new ReadCountedHashMap(cursor2) : new ReadHashMap(cursor2);
+
+                // older transactions are unaffected
+                assertEquals("value 1", new String(map0.getCursor("key1").readBytes(MAX_READ_BYTES)));
+                assertEquals(0, map0.getCursor("key0").readUint());
+                assertEquals(null, map0.getCursor("key1000"));
+                assertEquals(5000, map1.getCursor("key500").readUint());
+                assertEquals(0, map1.getCursor("key0").readUint());
+
+                for (int i = 0; i < 1500; i++) {
+                    var cursor = map2.getCursor("key" + i);
+                    if (i % 2 == 0) {
+                        assertEquals(null, cursor);
+                    } else if (i < 500) {
+                        assertEquals("value " + i, new String(cursor.readBytes(MAX_READ_BYTES)));
+                    } else {
+                        assertEquals(i * 10, cursor.readUint());
+                    }
+                    if (cursor != null) {
+                        assertEquals("key" + i, new String(map2.getKeyCursor("key" + i).readBytes(MAX_READ_BYTES)));
+                    }
+                }
+
+                var count = 0;
+                var iter = map2.iterator();
+                while (iter.hasNext()) {
+                    iter.next();
+                    count += 1;
+                }
+                assertEquals(750, count);
+
+                if (isCounted) {
+                    assertEquals(1000, ((ReadCountedHashMap) map0).count());
+                    assertEquals(1500, ((ReadCountedHashMap) map1).count());
+                    assertEquals(750, ((ReadCountedHashMap) map2).count());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testWriteBatch() throws Exception {
+        try (var ram = new RandomAccessMemory(); var batchRam = new RandomAccessMemory()) {
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var core = new CoreMemory(ram);
+            var batchCore = new CoreMemory(batchRam);
+            var history = new WriteArrayList(new Database(core, hasher).rootCursor());
+            var batchHistory = new WriteArrayList(new Database(batchCore, hasher).rootCursor());
+
+            // the paths start from the moment's map
+            var users = new Database.PathPart[]{
+                new Database.HashMapGet(new Database.HashMapGetValue(hasher.md().digest("users".getBytes()))),
+                new Database.HashMapInit(false, false),
+            };
+            var fruits = new Database.PathPart[]{
+                new Database.HashMapGet(new Database.HashMapGetValue(hasher.md().digest("fruits".getBytes()))),
+                new Database.ArrayListInit(),
+            };
+            var paths = new ArrayList<Database.PathPart[]>();
+            for (int i = 0; i < 100; i++) {
+                var hash = hasher.md().digest(("user" + i).getBytes());
+                paths.add(append(users, new Database.HashMapGet(new Database.HashMapGetKey(hash)), new Database.WriteData(new Database.Bytes("user" + i))));
+                paths.add(append(users, new Database.HashMapGet(new Database.HashMapGetValue(hash)), new Database.WriteData(new Database.Uint(i))));
+                if (i % 10 == 0) {
+                    paths.add(append(fruits, new Database.ArrayListAppend(), new Database.WriteData(new Database.Bytes("fruit" + i))));
+                }
+            }
+            // writes that depend on the order of the writes before them
+            var user0 = hasher.md().digest("user0".getBytes());
+            paths.add(append(users, new Database.HashMapGet(new Database.HashMapGetValue(user0)), new Database.WriteData(new Database.Uint(1000))));
+            paths.add(append(users, new Database.HashMapRemove(hasher.md().digest("user1".getBytes()))));
+            paths.add(append(users, new Database.HashMapRemove(user0)));
+            paths.add(append(users, new Database.HashMapGet(new Database.HashMapGetValue(user0)), new Database.WriteData(new Database.Uint(2000))));
+            paths.add(append(fruits, new Database.ArrayListGet(-1), new Database.WriteData(new Database.Bytes("last"))));
+
+            // write them one at a time, and with a batch
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                for (var path : paths) {
+                    ((WriteCursor) moment.cursor).writePath(path);
+                }
+                moment.put("foo", new Database.Bytes("foo"));
+            });
+            batchHistory.appendContext(batchHistory.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                var batch = new WriteBatch((WriteCursor) moment.cursor);
+                for (var path : paths) {
+                    batch.add(path);
+                }
+                batch.put(new Database.PathPart[]{}, "foo", new Database.Bytes("foo"));
+                assertEquals(paths.size() + 2, batch.size());
+                batch.execute();
+                assertEquals(0, batch.size());
+            });
+
+            // the batch doesn't copy any more than writing one at a time does
+            assertTrue(batchCore.length() <= core.length());
+
+            for (var h : new WriteArrayList[]{history, batchHistory}) {
+                var moment = new ReadHashMap(h.getCursor(-1));
+                var usersMap = new ReadHashMap(moment.getCursor("users"));
+                assertEquals(2000, usersMap.getCursor("user0").readUint());
+                assertEquals(null, usersMap.getKeyCursor("user0"));
+                assertEquals(null, usersMap.getCursor("user1"));
+                for (int i = 2; i < 100; i++) {
+                    assertEquals(i, usersMap.getCursor("user" + i).readUint());
+                    assertEquals("user" + i, new String(usersMap.getKeyCursor("user" + i).readBytes(MAX_READ_BYTES)));
+                }
+                var fruitsList = new ReadArrayList(moment.getCursor("fruits"));
+                assertEquals(10, fruitsList.count());
+                assertEquals("fruit0", new String(fruitsList.getCursor(0).readBytes(MAX_READ_BYTES)));
+                assertEquals("last", new String(fruitsList.getCursor(-1).readBytes(MAX_READ_BYTES)));
+                assertEquals("foo", new String(moment.getCursor("foo").readBytes(MAX_READ_BYTES)));
+            }
+
+            // writing to the key of an existing entry replaces it, whether
+            // or not it is merged with a write to the entry's value
+            var user2 = hasher.md().digest("user2".getBytes());
+            var user3 = hasher.md().digest("user3".getBytes());
+            var overwrites = new ArrayList<Database.PathPart[]>();
+            overwrites.add(append(users, new Database.HashMapGet(new Database.HashMapGetKey(user2)), new Database.WriteData(new Database.Bytes("new user2"))));
+            overwrites.add(append(users, new Database.HashMapGet(new Database.HashMapGetValue(user2)), new Database.WriteData(new Database.Uint(22))));
+            overwrites.add(append(users, new Database.HashMapGet(new Database.HashMapGetKey(user3)), new Database.WriteData(new Database.Bytes("new user3"))));
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                for (var path : overwrites) {
+                    cursor.writePath(path);
+                }
+            });
+            batchHistory.appendContext(batchHistory.getSlot(-1), (cursor) -> {
+                var batch = new WriteBatch(cursor);
+                for (var path : overwrites) {
+                    batch.add(path);
+                }
+                batch.execute();
+            });
+
+            for (var h : new WriteArrayList[]{history, batchHistory}) {
+                var usersMap = new ReadHashMap(new ReadHashMap(h.getCursor(-1)).getCursor("users"));
+                assertEquals("new user2", new String(usersMap.getKeyCursor("user2").readBytes(MAX_READ_BYTES)));
+                assertEquals(22, usersMap.getCursor("user2").readUint());
+                assertEquals("new user3", new String(usersMap.getKeyCursor("user3").readBytes(MAX_READ_BYTES)));
+                assertEquals(3, usersMap.getCursor("user3").readUint());
+            }
+        }
+
+        // a batch outside of a transaction syncs once, and
+        // the writes after it sync as usual
+        try (var ram = new RandomAccessMemory()) {
+            var syncCount = new AtomicInteger();
+            var core = new CoreMemory(ram) {
+                @Override
+                public void sync() throws IOException {
+                    syncCount.incrementAndGet();
+                    super.sync();
+                }
+            };
+            var db = new Database(core, new Hasher(MessageDigest.getInstance("SHA-1")));
+            var map = new WriteHashMap(db.rootCursor());
+            var batch = new WriteBatch((WriteCursor) map.cursor);
+            for (int i = 0; i < 10; i++) {
+                batch.put(new Database.PathPart[]{}, "key" + i, new Database.Uint(i));
+            }
+            syncCount.set(0);
+            batch.execute();
+            assertEquals(1, syncCount.get());
+            assertEquals(false, db.isSyncDeferred.get());
+            map.put("key10", new Database.Uint(10));
+            assertTrue(syncCount.get() > 1);
+            assertEquals(9, new ReadHashMap(db.rootCursor()).getCursor("key9").readUint());
+        }
+    }
+
+    private static Database.PathPart[] append(Database.PathPart[] path, Database.PathPart... parts) {
+        var newPath = Arrays.copyOf(path, path.length + parts.length);
+        System.arraycopy(parts, 0, newPath, path.length, parts.length);
+        return newPath;
+    }
+
+    @Test
+    void testHashMapBuilder() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            var history = new WriteArrayList(db.rootCursor());
+            var tags = new Tag[]{Tag.HASH_MAP, Tag.COUNTED_HASH_MAP, Tag.HASH_SET, Tag.COUNTED_HASH_SET};
+
+            // build each kind of map, with a small memory limit so the entries
+            // are spilled to several runs, and the same map one entry at a time
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                for (var tag : tags) {
+                    try (var builder = new HashMapBuilder(moment.putCursor("built-" + tag), tag, 100)) {
+                        for (int i = 0; i < 1000; i++) {
+                            builder.put("key" + i, i % 2 == 0 ? new Database.Uint(i) : new Database.Bytes("value " + i));
+                        }
+                        // the last value added for a key wins
+                        for (int i = 0; i < 50; i++) {
+                            builder.put("key" + i, new Database.Uint(i * 10));
+                        }
+                        builder.finish();
+                    }
+
+                    var incrementalCursor = moment.putCursor("incremental-" + tag);
+                    var map = tag == Tag.HASH_MAP ? new WriteHashMap(incrementalCursor) : tag == Tag.COUNTED_HASH_MAP ? new WriteCountedHashMap(incrementalCursor) : null;
+                    var set = tag == Tag.HASH_SET ? new WriteHashSet(incrementalCursor) : tag == Tag.COUNTED_HASH_SET ? new WriteCountedHashSet(incrementalCursor) : null;
+                    for (int i = 0; i < 1000; i++) {
+                        if (map != null) {
+                            map.put("key" + i, i < 50 ? new Database.Uint(i * 10) : i % 2 == 0 ? new Database.Uint(i) : new Database.Bytes("value " + i));
+                        } else {
+                            set.put("key" + i);
+                        }
+                    }
+                }
+            });
+
+            var moment = new ReadHashMap(history.getCursor(-1));
+            for (var tag : tags) {
+                var built = moment.getCursor("built-" + tag);
+                var incremental = moment.getCursor("incremental-" + tag);
+                assertEquals(tag, built.slot().tag());
+
+                // the maps have the same shape, so they are iterated in the same order
+                var builtIter = built.iterator();
+                var incrementalIter = incremental.iterator();
+                var count = 0;
+                while (incrementalIter.hasNext()) {
+                    assertTrue(builtIter.hasNext());
+                    var builtPair = builtIter.next().readKeyValuePair();
+                    var incrementalPair = incrementalIter.next().readKeyValuePair();
+                    assertArrayEquals(incrementalPair.hash, builtPair.hash);
+                    assertEquals(new String(incrementalPair.keyCursor.readBytes(MAX_READ_BYTES)), new String(builtPair.keyCursor.readBytes(MAX_READ_BYTES)));
+                    if (builtPair.valueCursor.slot().tag() == Tag.BYTES) {
+                        assertEquals(new String(incrementalPair.valueCursor.readBytes(MAX_READ_BYTES)), new String(builtPair.valueCursor.readBytes(MAX_READ_BYTES)));
+                    } else {
+                        assertEquals(incrementalPair.valueCursor.slot(), builtPair.valueCursor.slot());
+                    }
+                    count += 1;
+                }
+                assertTrue(!builtIter.hasNext());
+                assertEquals(1000, count);
+
+                switch (tag) {
+                    case HASH_MAP -> assertEquals(20, new ReadHashMap(built).getCursor("key2").readUint());
+                    case COUNTED_HASH_MAP -> assertEquals(1000, new ReadCountedHashMap(built).count());
+                    case HASH_SET -> assertTrue(new ReadHashSet(built).getCursor("key999") != null);
+                    case COUNTED_HASH_SET -> assertEquals(1000, new ReadCountedHashSet(built).count());
+                    default -> throw new IllegalStateException();
+                }
+            }
+
+            // the built map can be updated normally
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var map = new WriteCountedHashMap(new WriteHashMap(cursor).putCursor("built-" + Tag.COUNTED_HASH_MAP));
+                map.put("key1000", new Database.Uint(1000));
+                assertTrue(map.remove("key0"));
+            });
+            var map = new ReadCountedHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("built-" + Tag.COUNTED_HASH_MAP));
+            assertEquals(1000, map.count());
+            assertEquals(1000, map.getCursor("key1000").readUint());
+            assertEquals(null, map.getCursor("key0"));
+        }
+    }
+
+    @Test
+    void testCompactIndexBlocks() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            db.enableSlotBlockCache(100);
+            var history = new WriteArrayList(db.rootCursor());
+            var sizes = new long[2];
+
+            // build the same map with regular and compact index blocks
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                for (var isCompact : new boolean[]{false, true}) {
+                    try (var builder = new HashMapBuilder(moment.putCursor(isCompact ? "compact" : "regular"), Tag.COUNTED_HASH_MAP, 1000, isCompact)) {
+                        var start = core.length();
+                        for (int i = 0; i < 2000; i++) {
+                            builder.put("key" + i, new Database.Uint(i));
+                        }
+                        var end = core.length();
+                        builder.finish();
+                        sizes[isCompact ? 1 : 0] = core.length() - end;
+                        assertTrue(end > start);
+                    }
+                }
+            });
+
+            // the index blocks take up much less space
+            assertTrue(sizes[1] * 2 < sizes[0]);
+
+            var moment = new ReadHashMap(history.getCursor(-1));
+            var map = new ReadCountedHashMap(moment.getCursor("compact"));
+            assertEquals(2000, map.count());
+            var keys = new ArrayList<String>();
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(i, map.getCursor("key" + i).readUint());
+                assertEquals("key" + i, new String(map.getKeyCursor("key" + i).readBytes(MAX_READ_BYTES)));
+                keys.add("key" + i);
+            }
+            assertEquals(null, map.getCursor("key2000"));
+            assertEquals(1999, map.getAll(keys).get("key1999").readUint());
+            assertEquals(7, map.getCursorAsync("key7").join().readUint());
+            assertEquals(null, map.getCursorAsync("key2000").join());
+
+            // the key-value pair cursors point at the right slots
+            var count = 0;
+            var iter = map.iterator();
+            while (iter.hasNext()) {
+                var kvPairCursor = iter.next();
+                var slotBytes = new byte[Slot.length];
+                core.readAt(kvPairCursor.slotPtr.position(), slotBytes);
+                assertEquals(kvPairCursor.slot(), Slot.fromBytes(slotBytes));
+                count += 1;
+            }
+            assertEquals(2000, count);
+
+            // the compact blocks are expanded when they are changed
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var nextMap = new WriteCountedHashMap(new WriteHashMap(cursor).putCursor("compact"));
+                nextMap.put("key0", new Database.Uint(100));
+                nextMap.put("key2000", new Database.Uint(2000));
+                assertTrue(nextMap.remove("key1"));
+                var entries = new LinkedHashMap<String, Database.WriteableData>();
+                entries.put("key2", new Database.Uint(200));
+                entries.put("key2001", new Database.Uint(2001));
+                nextMap.putAll(entries);
+                assertEquals(1, nextMap.removeAll(List.of("key3", "key2002")));
+            });
+
+            var nextMap = new ReadCountedHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("compact"));
+            assertEquals(2000, nextMap.count());
+            assertEquals(100, nextMap.getCursor("key0").readUint());
+            assertEquals(null, nextMap.getCursor("key1"));
+            assertEquals(200, nextMap.getCursor("key2").readUint());
+            assertEquals(null, nextMap.getCursor("key3"));
+            assertEquals(2001, nextMap.getCursor("key2001").readUint());
+            for (int i = 4; i < 2001; i++) {
+                assertEquals(i, nextMap.getCursor("key" + i).readUint());
+            }
+
+            // the previous transaction is unchanged
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(i, map.getCursor("key" + i).readUint());
+            }
+        }
+    }
+
+    @Test
+    void testReadAround() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            // count the reads
+            var readCount = new int[1];
+            var core = new CoreMemory(ram) {
+                @Override
+                public void readAt(long pos, byte[] buffer) throws IOException {
+                    readCount[0] += 1;
+                    super.readAt(pos, buffer);
+                }
+            };
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            var history = new WriteArrayList(db.rootCursor());
+
+            // values that are too big to fit in a slot, written both after
+            // their key-value pair (put) and before it (putAll)
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                var map = new WriteHashMap(moment.putCursor("map"));
+                var entries = new LinkedHashMap<String, Database.WriteableData>();
+                for (int i = 0; i < 100; i++) {
+                    var value = new Database.Bytes("value " + i + " " + "x".repeat(100), "ab");
+                    if (i % 2 == 0) {
+                        map.put("key" + i, value);
+                    } else {
+                        entries.put("key" + i, value);
+                    }
+                }
+                map.putAll(entries);
+            });
+
+            var map = new ReadHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("map"));
+            for (var readAround : new int[]{0, 256}) {
+                db.enableReadAround(readAround);
+                for (int i = 0; i < 100; i++) {
+                    var cursor = map.getCursor("key" + i);
+                    var kvPair = map.getKeyValuePair("key" + i);
+                    readCount[0] = 0;
+                    var value = cursor.readBytesObject(MAX_READ_BYTES);
+                    var key = kvPair.keyCursor.readBytes(MAX_READ_BYTES);
+                    assertEquals("value " + i + " " + "x".repeat(100), new String(value.value()));
+                    assertEquals("ab", new String(value.formatTag()));
+                    assertEquals("key" + i, new String(key));
+                    if (readAround == 0) {
+                        // the size, and then the value and format tag
+                        assertEquals(2, readCount[0]);
+                    } else {
+                        // everything was read along with the key-value pair
+                        assertEquals(0, readCount[0]);
+                    }
+                }
+            }
+            assertEquals(null, map.getCursor("key100"));
+        }
+    }
+
+    @Test
+    void testTransactionBuffer() throws Exception {
+        try (var ram = new RandomAccessMemory();
+             var bufferedRam = new RandomAccessMemory()) {
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(new CoreMemory(ram), hasher);
+            var history = new WriteArrayList(db.rootCursor());
+
+            // count the writes that grow the inner core
+            var appendCount = new int[1];
+            var innerCore = new CoreMemory(bufferedRam) {
+                @Override
+                public void writeAll(byte[]... buffers) throws IOException {
+                    if (position() >= length()) appendCount[0] += 1;
+                    super.writeAll(buffers);
+                }
+            };
+            var core = new CoreTransactionBuffer(innerCore);
+            var bufferedDb = new Database(core, hasher);
+            var bufferedHistory = new WriteArrayList(bufferedDb.rootCursor());
+
+            for (int n = 0; n < 3; n++) {
+                var start = n * 100;
+                Database.ContextFunction fn = (cursor) -> {
+                    var moment = new WriteHashMap(cursor);
+                    var map = new WriteHashMap(moment.putCursor("map"));
+                    for (int i = start; i < start + 100; i++) {
+                        map.put("key" + i, new Database.Bytes("value " + i));
+                        // change the same nested map many times
+                        var counts = new WriteHashMap(moment.putCursor("counts"));
+                        counts.put("count", new Database.Uint(i + 1));
+                    }
+                };
+                history.appendContext(history.getSlot(-1), fn);
+
+                appendCount[0] = 0;
+                bufferedHistory.appendContext(bufferedHistory.getSlot(-1), fn);
+                // the whole transaction was written at once
+                assertEquals(1, appendCount[0]);
+                assertEquals(ram.size(), innerCore.length());
+            }
+
+            // the result is the same as writing without the buffer
+            assertArrayEquals(ram.toByteArray(), bufferedRam.toByteArray());
+
+            // a transaction that fails leaves nothing behind
+            var length = innerCore.length();
+            assertThrows(IllegalStateException.class, () -> bufferedHistory.appendContext(bufferedHistory.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                moment.put("foo", new Database.Bytes("bar"));
+                throw new IllegalStateException();
+            }));
+            assertEquals(length, core.length());
+            assertEquals(length, innerCore.length());
+
+            var moment = new ReadHashMap(bufferedHistory.getCursor(-1));
+            var map = new ReadHashMap(moment.getCursor("map"));
+            assertEquals("value 0", new String(map.getCursor("key0").readBytes(MAX_READ_BYTES)));
+            assertEquals("value 299", new String(map.getCursor("key299").readBytes(MAX_READ_BYTES)));
+            assertEquals(null, moment.getCursor("foo"));
+        }
+    }
+
+    @Test
+    void testTransaction() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            var history = new WriteArrayList(db.rootCursor());
+            var countersPath = new Database.PathPart[]{
+                new Database.HashMapInit(),
+                new Database.HashMapGet(new Database.HashMapGetValue(db.hash("counters".getBytes()))),
+            };
+
+            // threads that change different keys never conflict
+            var threadCount = 4;
+            var txCount = 25;
+            var conflictCount = new AtomicInteger();
+            var error = new AtomicReference<Throwable>();
+            var threads = new ArrayList<Thread>();
+            for (int t = 0; t < threadCount; t++) {
+                var key = "thread" + t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < txCount; i++) {
+                            var tx = new Transaction(history);
+                            var cursor = tx.readPath(new Database.PathPart[]{
+                                new Database.HashMapGet(new Database.HashMapGetValue(db.hash("counters".getBytes()))),
+                                new Database.HashMapGet(new Database.HashMapGetValue(db.hash(key.getBytes()))),
+                            });
+                            var count = cursor == null ? 0 : cursor.readUint();
+                            tx.put(countersPath, key, new Database.Uint(count + 1));
+                            try {
+                                tx.commit();
+                            } catch (Database.TransactionConflictException e) {
+                                conflictCount.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            for (var thread : threads) thread.start();
+            for (var thread : threads) thread.join();
+            if (error.get() != null) throw new RuntimeException(error.get());
+
+            assertEquals(0, conflictCount.get());
+            assertEquals(threadCount * txCount, history.count());
+            var counters = new ReadHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("counters"));
+            for (int t = 0; t < threadCount; t++) {
+                assertEquals(txCount, counters.getCursor("thread" + t).readUint());
+            }
+
+            // transactions that read the same key conflict
+            var sharedPath = new Database.PathPart[]{
+                new Database.HashMapGet(new Database.HashMapGetValue(db.hash("counters".getBytes()))),
+                new Database.HashMapGet(new Database.HashMapGetValue(db.hash("thread0".getBytes()))),
+            };
+            var tx1 = new Transaction(history);
+            var tx2 = new Transaction(history);
+            tx1.put(countersPath, "thread0", new Database.Uint(tx1.readPath(sharedPath).readUint() + 1));
+            tx2.put(countersPath, "thread0", new Database.Uint(tx2.readPath(sharedPath).readUint() + 1));
+            tx1.commit();
+            assertThrows(Database.TransactionConflictException.class, () -> tx2.commit());
+            assertEquals(threadCount * txCount + 1, history.count());
+            assertThrows(IllegalStateException.class, () -> tx1.commit());
+
+            // so do transactions that write the same key without reading it
+            var tx3 = new Transaction(history);
+            var tx4 = new Transaction(history);
+            tx3.put(countersPath, "thread1", new Database.Uint(100));
+            tx4.put(countersPath, "thread1", new Database.Uint(200));
+            tx3.commit();
+            assertThrows(Database.TransactionConflictException.class, () -> tx4.commit());
+
+            // but a transaction that writes a different key is applied
+            // on top of the moments committed since it began
+            var tx5 = new Transaction(history);
+            tx5.put(countersPath, "thread2", new Database.Uint(300));
+            var tx6 = new Transaction(history);
+            tx6.put(countersPath, "thread3", new Database.Uint(400));
+            tx5.commit();
+            tx6.commit();
+            assertEquals(tx5.baseIndex(), tx6.baseIndex());
+            counters = new ReadHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("counters"));
+            assertEquals(txCount + 1, counters.getCursor("thread0").readUint());
+            assertEquals(100, counters.getCursor("thread1").readUint());
+            assertEquals(300, counters.getCursor("thread2").readUint());
+            assertEquals(400, counters.getCursor("thread3").readUint());
+
+            // replacing the latest moment without changing the count of
+            // the history still makes a conflicting transaction fail
+            var tx7 = new Transaction(history);
+            tx7.put(countersPath, "thread1", new Database.Uint(tx7.readPath(new Database.PathPart[]{
+                new Database.HashMapGet(new Database.HashMapGetValue(db.hash("counters".getBytes()))),
+                new Database.HashMapGet(new Database.HashMapGetValue(db.hash("thread1".getBytes()))),
+            }).readUint() + 1));
+            var count = history.count();
+            history.slice(count - 1);
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                new WriteHashMap(moment.putCursor("counters")).put("thread1", new Database.Uint(500));
+            });
+            assertEquals(count, history.count());
+            assertEquals(tx7.baseIndex(), history.count() - 1);
+            assertThrows(Database.TransactionConflictException.class, () -> tx7.commit());
+        }
+    }
+
+    @Test
+    void testMapBitCount() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new Database(new CoreMemory(new RandomAccessMemory()), new Hasher(MessageDigest.getInstance("SHA-1")), 1));
+        assertThrows(IllegalArgumentException.class, () -> new Database(new CoreMemory(new RandomAccessMemory()), new Hasher(MessageDigest.getInstance("SHA-1")), 9));
+
+        for (int bitCount = Database.MIN_MAP_BIT_COUNT; bitCount <= Database.MAX_MAP_BIT_COUNT; bitCount++) {
+            try (var ram = new RandomAccessMemory()) {
+                var core = new CoreMemory(ram);
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                var db = new Database(core, hasher, bitCount);
+                var history = new WriteArrayList(db.rootCursor());
+
+                history.appendContext(history.getSlot(-1), (cursor) -> {
+                    var moment = new WriteHashMap(cursor);
+                    var map = new WriteCountedHashMap(moment.putCursor("map"));
+                    for (int i = 0; i < 1000; i++) {
+                        map.put("key" + i, new Database.Uint(i));
+                    }
+                    for (int i = 0; i < 1000; i += 10) {
+                        assertTrue(map.remove("key" + i));
+                    }
+                    for (var isCompact : new boolean[]{false, true}) {
+                        try (var builder = new HashMapBuilder(moment.putCursor(isCompact ? "compact" : "built"), Tag.HASH_MAP, 100, isCompact)) {
+                            for (int i = 0; i < 1000; i++) {
+                                builder.put("key" + i, new Database.Uint(i));
+                            }
+                            builder.finish();
+                        }
+                    }
+                });
+
+                // the bit count is in the header, and the default
+                // one is stored as zero like in older databases
+                var headerBytes = new byte[Database.Header.length];
+                core.readAt(0, headerBytes);
+                assertEquals(bitCount == Database.BIT_COUNT ? 0 : bitCount, headerBytes[4]);
+                assertEquals(Database.VERSION, headerBytes[5]);
+
+                // it is read from the header when the database is opened,
+                // regardless of what is passed to the constructor
+                var reopened = new Database(core, hasher);
+                assertEquals(bitCount, reopened.header.mapBitCountOrDefault());
+                var moment = new ReadHashMap(new ReadArrayList(reopened.rootCursor()).getCursor(-1));
+                var map = new ReadCountedHashMap(moment.getCursor("map"));
+                assertEquals(900, map.count());
+                for (int i = 0; i < 1000; i++) {
+                    var cursor = map.getCursor("key" + i);
+                    if (i % 10 == 0) {
+                        assertEquals(null, cursor);
+                    } else {
+                        assertEquals(i, cursor.readUint());
+                    }
+                }
+                var count = 0;
+                var iter = map.iterator();
+                while (iter.hasNext()) {
+                    iter.next();
+                    count += 1;
+                }
+                assertEquals(900, count);
+
+                for (var name : new String[]{"built", "compact"}) {
+                    var builtMap = new ReadHashMap(moment.getCursor(name));
+                    for (int i = 0; i < 1000; i++) {
+                        assertEquals(i, builtMap.getCursor("key" + i).readUint());
+                    }
+                    assertEquals(999, builtMap.getCursorAsync("key999").join().readUint());
+                    var builtCount = 0;
+                    var builtIter = builtMap.iterator();
+                    while (builtIter.hasNext()) {
+                        builtIter.next();
+                        builtCount += 1;
+                    }
+                    assertEquals(1000, builtCount);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testCountedMapCountsWrittenOnce() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            var history = new WriteArrayList(db.rootCursor());
+
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                var map = new WriteCountedHashMap(moment.putCursor("map"));
+                for (int i = 0; i < 100; i++) {
+                    map.put("key" + i, new Database.Uint(i));
+                }
+                assertTrue(map.remove("key0"));
+                assertEquals(false, map.remove("key0"));
+
+                // the count is kept in memory until the transaction ends
+                assertEquals(99, map.count());
+                var countBytes = new byte[8];
+                core.readAt(map.slot().value(), countBytes);
+                assertEquals(0L, ByteBuffer.wrap(countBytes).getLong());
+            });
+
+            // it is written when the transaction is completed
+            var map = new ReadCountedHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("map"));
+            assertEquals(99, map.count());
+            var countBytes = new byte[8];
+            core.readAt(map.slot().value(), countBytes);
+            assertEquals(99L, ByteBuffer.wrap(countBytes).getLong());
+
+            // the counts from a failed transaction are thrown away
+            assertThrows(IllegalStateException.class, () -> {
+                history.appendContext(history.getSlot(-1), (cursor) -> {
+                    var moment = new WriteHashMap(cursor);
+                    var nextMap = new WriteCountedHashMap(moment.putCursor("map"));
+                    nextMap.put("key100", new Database.Uint(100));
+                    throw new IllegalStateException();
+                });
+            });
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                var nextMap = new WriteCountedHashMap(moment.putCursor("map"));
+                assertEquals(99, nextMap.count());
+                nextMap.put("key101", new Database.Uint(101));
+            });
+            assertEquals(100, new ReadCountedHashMap(new ReadHashMap(history.getCursor(-1)).getCursor("map")).count());
+        }
+    }
+
+    @Test
+    void testIteratorPrefetch() throws Exception {
+        var file = File.createTempFile("database", "");
+        file.deleteOnExit();
+
+        try (var raf = new RandomAccessFile(file, "rw")) {
+            var core = new CoreFile(raf);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+
+            // enough items to need several levels of index blocks
+            var history = new WriteArrayList(db.rootCursor());
+            history.appendContext(history.getSlot(-1), (cursor) -> {
+                var moment = new WriteHashMap(cursor);
+                var nums = new WriteArrayList(moment.putCursor("nums"));
+                for (int i = 0; i < 5000; i++) {
+                    nums.append(new Database.Uint(i));
+                }
+                for (int i = 0; i < 100; i++) {
+                    nums.put(i * 37, new Database.Uint(i * 37 + 100000));
+                }
+            });
+
+            var nums = new ReadArrayList(new ReadHashMap(history.getCursor(-1)).getCursor("nums"));
+            for (var prefetchCount : new int[]{0, 1, 4, 16}) {
+                // repeat with the slot block cache, so some blocks come from it
+                for (var cacheSize : new int[]{0, 8}) {
+                    if (cacheSize > 0) db.enableSlotBlockCache(cacheSize);
+                    var iter = nums.iterator(prefetchCount);
+                    var i = 0;
+                    while (iter.hasNext()) {
+                        var expected = i % 37 == 0 && i / 37 < 100 ? i + 100000 : i;
+                        assertEquals(expected, iter.next().readUint());
+                        i += 1;
+                    }
+                    assertEquals(5000, i);
+                }
+            }
+
+            assertThrows(IllegalArgumentException.class, () -> new ReadCursor.Iterator(nums.cursor, -1));
+        }
+    }
+
+    @Test
+    void testSlotBlockCache() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            var db = new Database(core, hasher);
+            db.enableSlotBlockCache(4);
+
+            var history = new WriteArrayList(db.rootCursor());
+            for (int tx = 0; tx < 3; tx++) {
+                final int txNum = tx;
+                history.appendContext(history.getSlot(-1), (cursor) -> {
+                    var moment = new WriteHashMap(cursor);
+                    var numsCursor = moment.putCursor("nums");
+                    var nums = new WriteArrayList(numsCursor);
+                    for (int i = 0; i < 50; i++) {
+                        nums.append(new Database.Uint(txNum * 100 + i));
+                    }
+                    for (int i = 0; i < 50; i++) {
+                        moment.put("key" + i, new Database.Uint(txNum * 100 + i));
+                    }
+                });
+
+                // read everything twice, so the second read comes from the cache
+                for (int pass = 0; pass < 2; pass++) {
+                    var moment = new ReadHashMap(history.getCursor(-1));
+                    for (int i = 0; i < 50; i++) {
+                        assertEquals(txNum * 100 + i, moment.getCursor("key" + i).readUint());
+                    }
+
+                    var nums = new ReadArrayList(moment.getCursor("nums"));
+                    assertEquals((txNum + 1) * 50, nums.count());
+                    var iter = nums.iterator();
+                    for (int t = 0; t <= txNum; t++) {
+                        for (int i = 0; i < 50; i++) {
+                            assertEquals(t * 100 + i, iter.next().readUint());
+                        }
+                    }
+
+                    var count = 0;
+                    var mapIter = moment.iterator();
+                    while (mapIter.hasNext()) {
+                        mapIter.next();
+                        count += 1;
+                    }
+                    assertEquals(51, count);
+                }
+
+                // older moments are unaffected
+                if (txNum > 0) {
+                    var moment = new ReadHashMap(history.getCursor(0));
+                    assertEquals(0, moment.getCursor("key0").readUint());
+                    assertEquals(50, new ReadArrayList(moment.getCursor("nums")).count());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testAsyncReads() throws Exception {
+        var resource = getClass().getClassLoader().getResource("test.db");
+        File file = new File(resource.toURI());
+
+        // CoreAsyncFile reads without blocking, while other cores
+        // fall back to reading synchronously
+        try (var asyncFile = new RandomAccessAsyncFile(file, "r");
+             var raf = new RandomAccessFile(file, "r")) {
+            for (var core : new Core[]{new CoreAsyncFile(asyncFile), new CoreFile(raf)}) {
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                var db = new Database(core, hasher);
+                var history = new ReadArrayList(db.rootCursor());
+                var moment = new ReadHashMap(history.getCursor(0));
+
+                // start many lookups at once and wait for all of them
+                var futures = new ArrayList<CompletableFuture<ReadCursor>>();
+                for (int i = 0; i < 100; i++) {
+                    futures.add(moment.getCursorAsync("foo"));
+                    futures.add(moment.getCursorAsync("fruits"));
+                    futures.add(moment.getCursorAsync("missing"));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+                for (int i = 0; i < futures.size(); i += 3) {
+                    assertEquals("foo", new String(futures.get(i).join().readBytes(MAX_READ_BYTES)));
+                    assertEquals(3, new ReadArrayList(futures.get(i + 1).join()).count());
+                    assertEquals(null, futures.get(i + 2).join());
+                }
+
+                // nested maps can be read asynchronously too
+                var people = new ReadArrayList(moment.getCursorAsync("people").join());
+                var alice = new ReadHashMap(people.getCursor(0));
+                assertEquals(25, alice.getCursorAsync("age").join().readUint());
+            }
+        }
+    }
+
     void testHighLevelApi(Core core, Hasher hasher, File fileMaybe) throws Exception {
         // init the db
         core.setLength(0);
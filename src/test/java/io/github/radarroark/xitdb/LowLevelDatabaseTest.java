@@ -1,20 +1,30 @@
 package io.github.radarroark.xitdb;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 
 class LowLevelDatabaseTest {
     static long MAX_READ_BYTES = 1024;
+    static final BigInteger BIG_MASK = BigInteger.valueOf(Database.MASK);
 
     @Test
     void testLowLevelApi() throws Exception {
@@ -24,6 +34,31 @@ class LowLevelDatabaseTest {
             testLowLevelApi(core, hasher);
         }
 
+        // a core that only implements the required methods uses the
+        // default readAt and writeAll
+        try (var ram = new RandomAccessMemory()) {
+            var inner = new CoreMemory(ram);
+            var core = new Core() {
+                public DataInput reader() { return inner.reader(); }
+                public DataOutput writer() { return inner.writer(); }
+                public long length() throws IOException { return inner.length(); }
+                public void seek(long pos) throws IOException { inner.seek(pos); }
+                public long position() throws IOException { return inner.position(); }
+                public void setLength(long len) throws IOException { inner.setLength(len); }
+                public void flush() throws IOException { inner.flush(); }
+                public void sync() throws IOException { inner.sync(); }
+            };
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            testLowLevelApi(core, hasher);
+        }
+
+        // use a small chunk size so reads and writes cross chunk boundaries
+        try (var ram = new RandomAccessChunkedMemory(64)) {
+            var core = new CoreChunkedMemory(ram);
+            var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+            testLowLevelApi(core, hasher);
+        }
+
         {
             var file = File.createTempFile("database", "");
             file.deleteOnExit();
@@ -39,12 +74,127 @@ class LowLevelDatabaseTest {
             var file = File.createTempFile("database", "");
             file.deleteOnExit();
 
-            try (var raf = new RandomAccessBufferedFile(file, "rw", 1024)) {
+            // use a small buffer and page size so pages are evicted and written back often
+            try (var raf = new RandomAccessBufferedFile(file, "rw", 1024, 128)) {
                 var core = new CoreBufferedFile(raf);
                 var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
                 testLowLevelApi(core, hasher);
             }
         }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            // use a small segment size so reads cross segment boundaries
+            try (var raf = new RandomAccessMappedFile(file, "rw", 1024)) {
+                var core = new CoreMappedFile(raf);
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testLowLevelApi(core, hasher);
+            }
+        }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            // use a small cache so blocks are evicted and reads cross block boundaries
+            try (var raf = new RandomAccessBufferedFile(file, "rw")) {
+                var core = new CoreCached(new CoreBufferedFile(raf), 256, 64 * 256);
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testLowLevelApi(core, hasher);
+            }
+        }
+
+        {
+            var file = File.createTempFile("database", "");
+            file.deleteOnExit();
+
+            // use a small buffer so it is written before transactions complete
+            try (var raf = new RandomAccessFile(file, "rw")) {
+                var core = new CoreTransactionBuffer(new CoreFile(raf), 1024);
+                var hasher = new Hasher(MessageDigest.getInstance("SHA-1"));
+                testLowLevelApi(core, hasher);
+            }
+        }
+    }
+
+    @Test
+    void testHashIndex() throws Exception {
+        // the slot index must match what BigInteger computes, including
+        // the sign-extended bits past the end of the hash
+        var random = new Random(0);
+        for (var hashSize : new int[]{20, 32}) {
+            for (int n = 0; n < 100; n++) {
+                var hash = new byte[hashSize];
+                random.nextBytes(hash);
+                // maps can use other bit counts than the default
+                for (var bitCount : new int[]{Database.BIT_COUNT, 2, 3, 5, 6, 7, 8}) {
+                    var mask = BigInteger.valueOf((1 << bitCount) - 1);
+                    for (int keyOffset = 0; keyOffset <= (hashSize * 8) / bitCount; keyOffset++) {
+                        var expected = new BigInteger(hash).shiftRight(keyOffset * bitCount).and(mask).intValueExact();
+                        assertEquals(expected, Database.hashIndex(hash, keyOffset, bitCount));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testMurmur3Hasher() throws Exception {
+        var md = new Murmur3Digest();
+        assertEquals(16, md.getDigestLength());
+        assertEquals("00000000000000000000000000000000", HexFormat.of().formatHex(md.digest(new byte[0])));
+        assertEquals("029bbd41b3a7d8cb191dae486a901e5b", HexFormat.of().formatHex(md.digest("hello".getBytes())));
+
+        // updating in pieces gives the same result as all at once
+        var bytes = "The quick brown fox jumps over the lazy dog".getBytes();
+        var expected = md.digest(bytes);
+        for (int i = 0; i <= bytes.length; i++) {
+            md.update(bytes, 0, i);
+            var copy = (MessageDigest) md.clone();
+            copy.update(bytes, i, bytes.length - i);
+            assertArrayEquals(expected, copy.digest());
+            md.reset();
+        }
+
+        // the hash id is written to the header
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var db = new Database(core, Hasher.murmur3());
+            var map = new WriteHashMap(db.rootCursor());
+            map.put("foo", new Database.Bytes("bar"));
+            assertEquals("bar", new String(map.getCursor("foo").readBytes(null)));
+
+            core.seek(0);
+            var header = Database.Header.read(core);
+            assertEquals("mur3", Hasher.idToString(header.hashId()));
+            assertEquals(16, header.hashSize());
+        }
+    }
+
+    @Test
+    void testKeyHashing() throws Exception {
+        try (var ram = new RandomAccessMemory()) {
+            var core = new CoreMemory(ram);
+            var md = MessageDigest.getInstance("SHA-1");
+            var db = new Database(core, new Hasher(md));
+
+            // strings are hashed the same way as their UTF-8 bytes,
+            // including ones that are too big for the initial buffer
+            for (var key : new String[]{"", "foo", "h\u00e9llo w\u00f6rld \u2603", "bad \ud800 surrogate", "x".repeat(1000)}) {
+                var expected = md.digest(key.getBytes("UTF-8"));
+                assertArrayEquals(expected, db.hash(key));
+                assertArrayEquals(expected, db.hash(key.getBytes("UTF-8")));
+
+                // the hash can be written into an existing array
+                var out = new byte[expected.length + 4];
+                db.hash(key, out, 4);
+                assertArrayEquals(expected, Arrays.copyOfRange(out, 4, out.length));
+            }
+
+            assertThrows(IllegalArgumentException.class, () -> db.hash("foo", new byte[10], 0));
+        }
     }
 
     @Test
@@ -71,6 +221,77 @@ class LowLevelDatabaseTest {
         }
     }
 
+    // opens a temp file with O_DIRECT to check if its file system supports it
+    static boolean isDirectIoSupported() throws Exception {
+        var file = File.createTempFile("database", "");
+        try (var raf = new RandomAccessDirectFile(file, "rw")) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void testDirectFileTail() throws Exception {
+        // some file systems (such as tmpfs) don't support direct i/o
+        assumeTrue(isDirectIoSupported());
+
+        var file = File.createTempFile("database", "");
+        file.deleteOnExit();
+
+        var expected = new ByteArrayOutputStream();
+        try (var raf = new RandomAccessDirectFile(file, "rw")) {
+            // small appends stay in the tail until the file is flushed
+            for (int i = 0; expected.size() < raf.alignment() * 2 + 100; i++) {
+                var bytes = ("slot " + i + ";").getBytes();
+                raf.seek(raf.length());
+                raf.write(bytes);
+                expected.write(bytes);
+                var read = new byte[bytes.length];
+                raf.readAt(raf.length() - bytes.length, read);
+                assertArrayEquals(bytes, read);
+            }
+            assertEquals(expected.size(), raf.length());
+            assertTrue(file.length() < raf.length());
+
+            // writes before the tail, and across it
+            var bytes = "overwritten".getBytes();
+            var pos = raf.alignment() * 2 - 5;
+            raf.seek(pos);
+            raf.write(bytes);
+            var all = expected.toByteArray();
+            System.arraycopy(bytes, 0, all, pos, bytes.length);
+            raf.seek(1);
+            raf.write(bytes);
+            System.arraycopy(bytes, 0, all, 1, bytes.length);
+            var read = new byte[all.length];
+            raf.readAt(0, read);
+            assertArrayEquals(all, read);
+
+            raf.flush();
+            assertEquals(all.length, file.length());
+
+            // cut the file back before the tail
+            raf.setLength(raf.alignment() + 10);
+            raf.seek(raf.length());
+            raf.write(bytes);
+            assertEquals(raf.alignment() + 10 + bytes.length, raf.length());
+            expected.reset();
+            expected.write(all, 0, raf.alignment() + 10);
+            expected.write(bytes);
+        }
+
+        // closing writes the tail
+        assertEquals(expected.size(), file.length());
+        try (var raf = new RandomAccessDirectFile(file, "r")) {
+            var read = new byte[expected.size()];
+            raf.readAt(0, read);
+            assertArrayEquals(expected.toByteArray(), read);
+        }
+    }
+
     void testSlice(Core core, Hasher hasher, int originalSize, long sliceOffset, long sliceSize) throws Exception {
         core.setLength(0);
         var db = new Database(core, hasher);
@@ -895,7 +1116,7 @@ class LowLevelDatabaseTest {
 
                     var reader = core.reader();
 
-                    var i = new BigInteger(fooKey).and(Database.BIG_MASK).intValueExact();
+                    var i = new BigInteger(fooKey).and(BIG_MASK).intValueExact();
                     var slotPos = indexPos + (Slot.length * i);
                     core.seek(slotPos);
                     var slotBytes = new byte[Slot.length];
@@ -942,7 +1163,7 @@ class LowLevelDatabaseTest {
 
                     var reader = core.reader();
 
-                    var i = new BigInteger(fooKey).and(Database.BIG_MASK).intValueExact();
+                    var i = new BigInteger(fooKey).and(BIG_MASK).intValueExact();
                     var slotPos = indexPos + (Slot.length * i);
                     core.seek(slotPos);
                     var slotBytes = new byte[Slot.length];
@@ -981,7 +1202,7 @@ class LowLevelDatabaseTest {
 
                     var reader = core.reader();
 
-                    var i = new BigInteger(fooKey).and(Database.BIG_MASK).intValueExact();
+                    var i = new BigInteger(fooKey).and(BIG_MASK).intValueExact();
                     var slotPos = indexPos + (Slot.length * i);
                     core.seek(slotPos);
                     var slotBytes = new byte[Slot.length];